@@ -0,0 +1,41 @@
+package com.hmdp.config;
+
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheOptions;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Configuration;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+@Configuration
+public class CacheConfig {
+
+    @Resource
+    private CacheClient cacheClient;
+
+    /**
+     * 商铺缓存分桶存储时每个桶的条目数，0为不分桶
+     */
+    @Value("${hmdp.cache.shop.bucket-size:0}")
+    private long shopBucketSize;
+
+    @PostConstruct
+    public void init() {
+        // 商铺详情：开启本地一级缓存、逻辑过期的提前刷新和布隆过滤器，
+        // 过期时间加随机抖动，数据库出错时返回影子副本并熔断，可选分桶存储
+        cacheClient.configure(CACHE_SHOP_KEY, CacheOptions.defaults()
+                .setLocalCacheEnabled(true)
+                .setLocalMaxSize(CACHE_SHOP_LOCAL_MAX_SIZE)
+                .setLocalTtlSeconds(CACHE_SHOP_LOCAL_TTL)
+                .setEarlyRefreshEnabled(true)
+                .setBloomFilterEnabled(true)
+                .setTtlJitterRatio(CACHE_SHOP_TTL_JITTER)
+                .setStaleIfErrorEnabled(true)
+                .setStaleTtlSeconds(CACHE_SHOP_STALE_TTL)
+                .setCircuitBreakerEnabled(true)
+                .setBucketSize(shopBucketSize));
+    }
+}
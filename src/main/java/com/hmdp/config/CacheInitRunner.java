@@ -0,0 +1,82 @@
+package com.hmdp.config;
+
+import com.hmdp.service.IShopService;
+import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.ShopCacheWarmer;
+import com.hmdp.utils.ShopGeoIndex;
+import com.hmdp.utils.ShopGridIndex;
+import com.hmdp.utils.ShopNameIndex;
+import com.hmdp.utils.ShopTypeIndex;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_KEY;
+
+/**
+ * 应用启动后初始化缓存相关的数据
+ */
+@Slf4j
+@Component
+public class CacheInitRunner implements ApplicationRunner {
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private IShopService shopService;
+
+    @Resource
+    private IVoucherService voucherService;
+
+    @Resource
+    private ShopCacheWarmer shopCacheWarmer;
+
+    @Resource
+    private ShopTypeIndex shopTypeIndex;
+
+    @Resource
+    private ShopNameIndex shopNameIndex;
+
+    @Resource
+    private ShopGeoIndex shopGeoIndex;
+
+    @Resource
+    private ShopGridIndex shopGridIndex;
+
+    @Value("${hmdp.cache.warm-up.enabled:false}")
+    private boolean warmUpEnabled;
+
+    @Override
+    public void run(ApplicationArguments args) {
+        // 加载商铺布隆过滤器，Redis中没有时从数据库初始化
+        if (!cacheClient.loadBloomFilter(CACHE_SHOP_KEY)) {
+            log.info("Redis中没有商铺布隆过滤器，开始从数据库初始化");
+            shopService.rebuildBloomFilter();
+        }
+        // 构建商铺类型索引，Redis中已经有了就直接用，之后靠商铺变更事件增量维护
+        if (!shopTypeIndex.isReady()) {
+            log.info("Redis中没有商铺类型索引，开始从数据库构建");
+            shopTypeIndex.rebuild();
+        }
+        // 构建附近商铺的GEO索引
+        if (!shopGeoIndex.isReady()) {
+            log.info("Redis中没有商铺GEO索引，开始从数据库构建");
+            shopGeoIndex.rebuild();
+        }
+        // 恢复秒杀券的秒杀时间和限购数量，Redis重启之后秒杀脚本才能继续校验
+        voucherService.restoreSeckillVouchers();
+        // 加载进程内的商铺名称索引和附近商铺网格索引
+        shopNameIndex.load();
+        shopGridIndex.load();
+        // 预热商铺缓存，ApplicationRunner执行完之前应用不会进入ready状态
+        if (warmUpEnabled) {
+            shopCacheWarmer.warmUp();
+        }
+    }
+}
@@ -24,8 +24,12 @@ public class MvcConfig implements WebMvcConfigurer {
                 "/blog/hot",
                 "/shop/**",
                 "/shop-type/**",
-                "/voucher/**",
+                // 补货 /voucher/seckill/{id}/restock 需要登录，不能整个 /voucher/** 放行
+                "/voucher",
+                "/voucher/seckill",
+                "/voucher/list/**",
                 "/upload/**",
+                "/actuator/**",
                 "/blog/detail/**",
                 "/blog/of/me",
                 "/blog/of/follow",
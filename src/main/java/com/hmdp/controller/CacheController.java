@@ -0,0 +1,150 @@
+package com.hmdp.controller;
+
+
+import com.hmdp.dto.Result;
+import com.hmdp.entity.Shop;
+import com.hmdp.service.IShopService;
+import com.hmdp.service.IShopTypeService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheMemoryReporter;
+import com.hmdp.utils.ShopCacheWarmer;
+import com.hmdp.utils.ShopGeoIndex;
+import com.hmdp.utils.ShopTypeIndex;
+import com.hmdp.utils.SystemConstants;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_KEY;
+
+/**
+ * <p>
+ * 缓存运维接口
+ * </p>
+ */
+@RestController
+@RequestMapping("/cache")
+public class CacheController {
+
+    @Resource
+    private IShopService shopService;
+
+    @Resource
+    private IShopTypeService shopTypeService;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private ShopCacheWarmer shopCacheWarmer;
+
+    @Resource
+    private CacheMemoryReporter cacheMemoryReporter;
+
+    @Resource
+    private ShopTypeIndex shopTypeIndex;
+
+    @Resource
+    private ShopGeoIndex shopGeoIndex;
+
+    /**
+     * 在后台预热商铺缓存
+     * @return 预热进度
+     */
+    @PostMapping("/warm-up/shop")
+    public Result warmUpShop() {
+        if (!shopCacheWarmer.warmUpAsync()) {
+            return Result.fail("商铺缓存正在预热中");
+        }
+        return Result.ok(shopCacheWarmer.getProgress());
+    }
+
+    /**
+     * 查询商铺缓存预热进度
+     * @return 预热进度
+     */
+    @GetMapping("/warm-up/shop")
+    public Result queryWarmUpProgress() {
+        return Result.ok(shopCacheWarmer.getProgress());
+    }
+
+    /**
+     * 对比商铺缓存在字符串key和分桶哈希两种布局下每条数据占用的内存
+     * @param count 样本数量，按id顺序取前count个商铺，最多MAX_MEMORY_REPORT_SAMPLES个
+     * @param bucketSize 每个桶的条目数，必须大于0
+     * @return 内存报告
+     */
+    @GetMapping("/memory/shop")
+    public Result reportShopMemory(
+            @RequestParam(value = "count", defaultValue = "1000") Integer count,
+            @RequestParam(value = "bucketSize", defaultValue = "100") Long bucketSize) {
+        if (count < 1 || count > SystemConstants.MAX_MEMORY_REPORT_SAMPLES) {
+            return Result.fail("样本数量必须在1到" + SystemConstants.MAX_MEMORY_REPORT_SAMPLES + "之间");
+        }
+        if (bucketSize < 1) {
+            return Result.fail("每个桶的条目数必须大于0");
+        }
+        Map<Long, Shop> samples = shopService.query().orderByAsc("id").last("LIMIT " + count).list()
+                .stream().collect(Collectors.toMap(Shop::getId, Function.identity()));
+        return Result.ok(cacheMemoryReporter.report(CACHE_SHOP_KEY, samples, bucketSize));
+    }
+
+    /**
+     * 查询当前的热点key
+     * @return 热点key及其估算的每窗口访问次数
+     */
+    @GetMapping("/hot-keys")
+    public Result queryHotKeys() {
+        return Result.ok(cacheClient.getHotKeys());
+    }
+
+    /**
+     * 商铺类型修改后重新加载，所有实例会在一秒内切换到新快照
+     * @return 新快照的版本号
+     */
+    @PostMapping("/shop-type/reload")
+    public Result reloadShopTypes() {
+        return Result.ok(shopTypeService.reload().getVersion());
+    }
+
+    /**
+     * 在线重建商铺类型索引
+     * @return 无
+     */
+    @PostMapping("/shop-type-index/rebuild")
+    public Result rebuildShopTypeIndex() {
+        if (!shopTypeIndex.rebuild()) {
+            return Result.fail("商铺类型索引正在重建中");
+        }
+        return Result.ok();
+    }
+
+    /**
+     * 在线重建附近商铺的GEO索引
+     * @return 无
+     */
+    @PostMapping("/shop-geo-index/rebuild")
+    public Result rebuildShopGeoIndex() {
+        if (!shopGeoIndex.rebuild()) {
+            return Result.fail("商铺GEO索引正在重建中");
+        }
+        return Result.ok();
+    }
+
+    /**
+     * 在线重建商铺布隆过滤器
+     * @return 无
+     */
+    @PostMapping("/bloom/shop/rebuild")
+    public Result rebuildShopBloomFilter() {
+        shopService.rebuildBloomFilter();
+        return Result.ok();
+    }
+}
@@ -1,15 +1,18 @@
 package com.hmdp.controller;
 
 
-import cn.hutool.core.util.StrUtil;
-import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
+import cn.hutool.core.util.BooleanUtil;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.service.IShopService;
-import com.hmdp.utils.SystemConstants;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.ETagUtils;
+import com.hmdp.utils.ShopTypeIndex;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
 
 import javax.annotation.Resource;
+import java.util.Collections;
 
 /**
  * <p>
@@ -26,15 +29,30 @@ public class ShopController {
     @Resource
     public IShopService shopService;
 
+    @Resource
+    private CacheClient cacheClient;
+
     /**
      * 根据id查询商铺信息
      * @param id 商铺id
-     * @return 商铺详情数据
+     * @return 商铺详情数据，内容和If-None-Match一致时返回304
      */
     @GetMapping("/{id}")
-    public Result queryShopById(@PathVariable("id") Long id) {
-
-        return shopService.queryById(id);
+    public Result queryShopById(@PathVariable("id") Long id, WebRequest request) {
+        Result result = shopService.queryById(id);
+        if (BooleanUtil.isFalse(result.getSuccess())) {
+            return result;
+        }
+        // 版本号优先用写入缓存时算好的内容摘要，内容没有变化，返回304，不再序列化响应体
+        Shop shop = (Shop) result.getData();
+        String version = cacheClient.versionOf(shop);
+        if (version == null) {
+            version = ETagUtils.version(Collections.singletonList(shop), s -> s.getId() + ":" + s.getUpdateTime() + ":" + s.hashCode());
+        }
+        if (request.checkNotModified(ETagUtils.weak(version))) {
+            return null;
+        }
+        return result;
     }
 
     /**
@@ -44,10 +62,8 @@ public class ShopController {
      */
     @PostMapping
     public Result saveShop(@RequestBody Shop shop) {
-        // 写入数据库
-        shopService.save(shop);
-        // 返回店铺id
-        return Result.ok(shop.getId());
+        // 写入数据库，并加入布隆过滤器
+        return shopService.saveShop(shop);
     }
 
     /**
@@ -65,19 +81,25 @@ public class ShopController {
      * 根据商铺类型分页查询商铺信息
      * @param typeId 商铺类型
      * @param current 页码
+     * @param sortBy 排序方式：id、score（评分）、sold（销量）
+     * @param x 经度，和纬度一起传入时按距离由近到远查询附近的商铺
+     * @param y 纬度
      * @return 商铺列表
      */
     @GetMapping("/of/type")
     public Result queryShopByType(
-            @RequestParam("typeId") Integer typeId,
-            @RequestParam(value = "current", defaultValue = "1") Integer current
+            @RequestParam("typeId") Long typeId,
+            @RequestParam(value = "current", defaultValue = "1") Integer current,
+            @RequestParam(value = "sortBy", defaultValue = ShopTypeIndex.SORT_ID) String sortBy,
+            @RequestParam(value = "x", required = false) Double x,
+            @RequestParam(value = "y", required = false) Double y
     ) {
-        // 根据类型分页查询
-        Page<Shop> page = shopService.query()
-                .eq("type_id", typeId)
-                .page(new Page<>(current, SystemConstants.DEFAULT_PAGE_SIZE));
-        // 返回数据
-        return Result.ok(page.getRecords());
+        // 带坐标时从GEO索引查询附近的商铺
+        if (x != null && y != null) {
+            return shopService.queryByLocation(typeId, current, x, y);
+        }
+        // 从类型索引中分页查询
+        return shopService.queryByType(typeId, current, sortBy);
     }
 
     /**
@@ -91,11 +113,7 @@ public class ShopController {
             @RequestParam(value = "name", required = false) String name,
             @RequestParam(value = "current", defaultValue = "1") Integer current
     ) {
-        // 根据类型分页查询
-        Page<Shop> page = shopService.query()
-                .like(StrUtil.isNotBlank(name), "name", name)
-                .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
-        // 返回数据
-        return Result.ok(page.getRecords());
+        // 从名称索引中分页查询
+        return shopService.queryByName(name, current);
     }
 }
@@ -1,12 +1,16 @@
 package com.hmdp.controller;
 
 
+import cn.hutool.core.util.BooleanUtil;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Voucher;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.ETagUtils;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
 
 import javax.annotation.Resource;
+import java.util.List;
 
 /**
  * <p>
@@ -45,13 +49,35 @@ public class VoucherController {
         return Result.ok(voucher.getId());
     }
 
+    /**
+     * 秒杀券补货，补货后清除所有实例的售罄标记，需要登录
+     * @param voucherId 优惠券id
+     * @param count 增加的库存
+     */
+    @PostMapping("seckill/{id}/restock")
+    public Result restockSeckillVoucher(@PathVariable("id") Long voucherId, @RequestParam("count") Integer count) {
+        return voucherService.restockSeckillVoucher(voucherId, count);
+    }
+
     /**
      * 查询店铺的优惠券列表
      * @param shopId 店铺id
-     * @return 优惠券列表
+     * @return 优惠券列表，内容和If-None-Match一致时返回304
      */
     @GetMapping("/list/{shopId}")
-    public Result queryVoucherOfShop(@PathVariable("shopId") Long shopId) {
-       return voucherService.queryVoucherOfShop(shopId);
+    public Result queryVoucherOfShop(@PathVariable("shopId") Long shopId, WebRequest request) {
+        Result result = voucherService.queryVoucherOfShop(shopId);
+        if (BooleanUtil.isFalse(result.getSuccess())) {
+            return result;
+        }
+        // 优惠券和库存都没有变化，返回304；库存在同一秒内变化时更新时间相同，所以库存和字段hash也参与计算
+        @SuppressWarnings("unchecked")
+        List<Voucher> vouchers = (List<Voucher>) result.getData();
+        String version = ETagUtils.version(vouchers,
+                v -> v.getId() + ":" + v.getUpdateTime() + ":" + v.getStock() + ":" + v.hashCode());
+        if (request.checkNotModified(ETagUtils.weak(version))) {
+            return null;
+        }
+        return result;
     }
 }
@@ -0,0 +1,25 @@
+package com.hmdp.dto;
+
+import com.hmdp.entity.ShopType;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.List;
+
+/**
+ * 商铺类型列表的不可变快照，body是提前序列化好的响应体，请求时直接写出
+ */
+@Getter
+@AllArgsConstructor
+public class ShopTypeSnapshot {
+    /**
+     * 对应Redis中的版本号
+     */
+    private final long version;
+    private final List<ShopType> types;
+    private final byte[] body;
+    /**
+     * 由版本号和响应体生成的强ETag，创建快照时计算一次
+     */
+    private final String eTag;
+}
@@ -42,6 +42,11 @@ public class VoucherOrder implements Serializable {
      */
     private Long voucherId;
 
+    /**
+     * 用户在这张优惠券下的第几笔订单，和用户id、优惠券id一起唯一
+     */
+    private Integer seq;
+
     /**
      * 支付方式 1：余额支付；2：支付宝；3：微信
      */
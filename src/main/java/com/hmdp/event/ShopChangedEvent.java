@@ -0,0 +1,31 @@
+package com.hmdp.event;
+
+import com.hmdp.entity.Shop;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * 商铺新增或修改后发布的事件，监听方在事务提交后更新各自的索引
+ * 本机修改时remote为false；其他实例修改后通过Redis广播过来时remote为true，此时before为null，
+ * Redis中的索引只需要处理本机的事件，进程内的索引两种都要处理
+ */
+@Getter
+@AllArgsConstructor
+public class ShopChangedEvent {
+    /**
+     * 修改前的商铺，新增时为null
+     */
+    private final Shop before;
+    /**
+     * 修改后的商铺（从数据库重新查询的完整数据）
+     */
+    private final Shop after;
+    /**
+     * 是否是其他实例广播过来的
+     */
+    private final boolean remote;
+
+    public ShopChangedEvent(Shop before, Shop after) {
+        this(before, after, false);
+    }
+}
@@ -2,6 +2,9 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
 
 /**
  * <p>
@@ -13,4 +16,11 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface VoucherOrderMapper extends BaseMapper<VoucherOrder> {
 
+    /**
+     * 多行INSERT批量写入订单，支付方式、状态和时间使用表的默认值
+     * 订单id或者 (用户, 优惠券, 第几笔) 已经存在的行用 ON DUPLICATE KEY UPDATE id = id 跳过，
+     * 不像INSERT IGNORE那样把字段超长、非空约束等其他错误也降级成警告
+     * @return 实际写入的条数，依赖连接参数useAffectedRows=true，否则跳过的行也会算作1
+     */
+    int insertBatch(@Param("orders") List<VoucherOrder> orders);
 }
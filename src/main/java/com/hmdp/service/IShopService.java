@@ -16,5 +16,15 @@ public interface IShopService extends IService<Shop> {
 
     Result queryById(Long id);
 
+    Result queryByType(Long typeId, Integer current, String sortBy);
+
+    Result queryByLocation(Long typeId, Integer current, Double x, Double y);
+
+    Result queryByName(String name, Integer current);
+
     Result update(Shop shop);
+
+    Result saveShop(Shop shop);
+
+    void rebuildBloomFilter();
 }
@@ -1,6 +1,7 @@
 package com.hmdp.service;
 
 import com.hmdp.dto.Result;
+import com.hmdp.dto.ShopTypeSnapshot;
 import com.hmdp.entity.ShopType;
 import com.baomidou.mybatisplus.extension.service.IService;
 
@@ -15,4 +16,14 @@ import com.baomidou.mybatisplus.extension.service.IService;
 public interface IShopTypeService extends IService<ShopType> {
 
     Result queryTypeList();
+
+    /**
+     * 当前的商铺类型快照，只读内存
+     */
+    ShopTypeSnapshot getSnapshot();
+
+    /**
+     * 从数据库重新加载商铺类型，并通知所有实例刷新快照
+     */
+    ShopTypeSnapshot reload();
 }
@@ -4,6 +4,9 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+import java.util.Set;
+
 /**
  * <p>
  *  服务类
@@ -17,4 +20,12 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
     Result seckillVoucher(Long voucherId);
 
     void createVoucherOrder(VoucherOrder voucherId);
+
+    /**
+     * 批量创建订单，每个优惠券一个事务，一个优惠券失败不影响其他优惠券
+     * @return 没有创建成功的订单id
+     */
+    Set<Long> createVoucherOrders(List<VoucherOrder> voucherOrders);
+
+    void createVoucherOrders(Long voucherId, List<VoucherOrder> voucherOrders);
 }
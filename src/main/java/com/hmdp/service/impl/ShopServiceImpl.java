@@ -1,26 +1,44 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
+import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.RedisData;
 import com.hmdp.entity.Shop;
+import com.hmdp.event.ShopChangedEvent;
 import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.ShopGeoIndex;
+import com.hmdp.utils.ShopGridIndex;
+import com.hmdp.utils.ShopNameIndex;
+import com.hmdp.utils.ShopTypeIndex;
+import com.hmdp.utils.SystemConstants;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.event.TransactionalEventListener;
 
 import javax.annotation.Resource;
 
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -38,6 +56,21 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     private StringRedisTemplate stringRedisTemplate;
     @Resource
     private CacheClient cacheClient;
+    @Resource
+    private ShopTypeIndex shopTypeIndex;
+    @Resource
+    private ShopNameIndex shopNameIndex;
+    @Resource
+    private ShopGeoIndex shopGeoIndex;
+    @Resource
+    private ShopGridIndex shopGridIndex;
+    /**
+     * 附近商铺是否优先使用进程内的网格索引
+     */
+    @Value("${hmdp.shop.nearby.local-index-enabled:true}")
+    private boolean nearbyLocalIndexEnabled;
+    @Resource
+    private ApplicationEventPublisher eventPublisher;
 
     /**
      * 根据ID查询商铺信息。
@@ -54,7 +87,7 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         //用互斥锁解决缓存击穿
         //Shop shop = queryWithMutex(id);
         //逻辑过期解决缓存击穿
-        Shop shop = cacheClient.queryWithLogicalExpire(CACHE_SHOP_KEY, id, Shop.class, this::getById, 10L, TimeUnit.SECONDS);
+        Shop shop = cacheClient.queryWithLogicalExpire(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_LOGICAL_TTL, TimeUnit.SECONDS);
         if (shop == null) {
             return Result.fail("店铺不存在！！");
         }
@@ -62,6 +95,127 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         return Result.ok(shop);
     }
 
+    /**
+     * 根据类型分页查询商铺，从有序集合中取出一页id，再批量从缓存加载商铺详情
+     * 索引还没建好或者这个类型的索引key不存在时退回到查询数据库
+     */
+    @Override
+    public Result queryByType(Long typeId, Integer current, String sortBy) {
+        if (!ShopTypeIndex.isValidSort(sortBy)) {
+            return Result.fail("不支持的排序方式：" + sortBy);
+        }
+        if (current == null || current < 1) {
+            return Result.fail("页码必须大于0");
+        }
+        int size = SystemConstants.DEFAULT_PAGE_SIZE;
+        //1. 从索引中取出一页id
+        List<Long> ids = shopTypeIndex.isReady()
+                ? shopTypeIndex.range(typeId, sortBy, (long) (current - 1) * size, size)
+                : null;
+        if (ids == null) {
+            Page<Shop> page = query()
+                    .eq("type_id", typeId)
+                    .orderBy(true, ShopTypeIndex.SORT_ID.equals(sortBy), sortBy)
+                    .page(new Page<>(current, size, false));
+            return Result.ok(page.getRecords());
+        }
+        if (ids.isEmpty()) {
+            return Result.ok(Collections.emptyList());
+        }
+        //2. 批量查询缓存，未命中的一次查询数据库
+        Map<Long, Shop> shops = cacheClient.queryBatchWithLogicalExpire(CACHE_SHOP_KEY, ids, Shop.class,
+                this::loadShops, CACHE_SHOP_LOGICAL_TTL, TimeUnit.SECONDS);
+        //3. 按索引中的顺序返回
+        return Result.ok(new ArrayList<>(shops.values()));
+    }
+
+    /**
+     * 根据类型分页查询附近的商铺，按距离由近到远排序，并填充距离
+     * 最多翻到距离最近的 SHOP_NEARBY_MAX_RESULTS 个商铺
+     */
+    @Override
+    public Result queryByLocation(Long typeId, Integer current, Double x, Double y) {
+        if (current == null || current < 1) {
+            return Result.fail("页码必须大于0");
+        }
+        if (!Double.isFinite(x) || !Double.isFinite(y) || Math.abs(x) > 180 || Math.abs(y) > SHOP_GEO_MAX_LATITUDE) {
+            return Result.fail("坐标超出范围");
+        }
+        int size = SystemConstants.DEFAULT_PAGE_SIZE;
+        long offset = (long) (current - 1) * size;
+        if (offset >= SHOP_NEARBY_MAX_RESULTS) {
+            return Result.ok(Collections.emptyList());
+        }
+        int from = (int) offset;
+        //1. 查询一页商铺id和距离，索引都不可用时按类型查询
+        Map<Long, Double> distances = queryNearby(typeId, x, y, from, size);
+        if (distances == null) {
+            return queryByType(typeId, current, ShopTypeIndex.SORT_ID);
+        }
+        if (distances.isEmpty()) {
+            return Result.ok(Collections.emptyList());
+        }
+        //2. 批量查询缓存
+        Map<Long, Shop> shops = cacheClient.queryBatchWithLogicalExpire(CACHE_SHOP_KEY, distances.keySet(), Shop.class,
+                this::loadShops, CACHE_SHOP_LOGICAL_TTL, TimeUnit.SECONDS);
+        //3. 填充距离，缓存中的对象是共享的，复制一份再修改
+        List<Shop> result = new ArrayList<>(shops.size());
+        shops.forEach((id, shop) -> {
+            Shop copy = BeanUtil.copyProperties(shop, Shop.class);
+            copy.setDistance(distances.get(id));
+            result.add(copy);
+        });
+        return Result.ok(result);
+    }
+
+    /**
+     * 优先查进程内的网格索引，没加载完时查Redis GEO
+     * @return 商铺id -> 距离，GEO索引没建好或者这个类型的key不存在时返回null
+     */
+    private Map<Long, Double> queryNearby(Long typeId, double x, double y, int from, int size) {
+        if (nearbyLocalIndexEnabled && shopGridIndex.isReady()) {
+            return shopGridIndex.nearby(typeId, x, y, from, size, SHOP_NEARBY_RADIUS_METERS);
+        }
+        if (shopGeoIndex.isReady()) {
+            return shopGeoIndex.nearby(typeId, x, y, from, size, SHOP_NEARBY_RADIUS_METERS);
+        }
+        return null;
+    }
+
+    /**
+     * 根据名称关键字分页查询商铺，关键字在进程内的名称索引中匹配，再批量从缓存加载商铺详情
+     * 没有关键字或者索引还没加载完时查询数据库
+     */
+    @Override
+    public Result queryByName(String name, Integer current) {
+        if (current == null || current < 1) {
+            return Result.fail("页码必须大于0");
+        }
+        int size = SystemConstants.MAX_PAGE_SIZE;
+        if (StrUtil.isBlank(name) || !shopNameIndex.isReady()) {
+            Page<Shop> page = query()
+                    .like(StrUtil.isNotBlank(name), "name", name)
+                    .page(new Page<>(current, size));
+            return Result.ok(page.getRecords());
+        }
+        //1. 从名称索引中取出排好序的一页id
+        long from = (long) (current - 1) * size;
+        List<Long> ids = from > Integer.MAX_VALUE
+                ? Collections.emptyList()
+                : shopNameIndex.search(name, (int) from, size);
+        if (ids.isEmpty()) {
+            return Result.ok(Collections.emptyList());
+        }
+        //2. 批量查询缓存，按索引中的顺序返回
+        Map<Long, Shop> shops = cacheClient.queryBatchWithLogicalExpire(CACHE_SHOP_KEY, ids, Shop.class,
+                this::loadShops, CACHE_SHOP_LOGICAL_TTL, TimeUnit.SECONDS);
+        return Result.ok(new ArrayList<>(shops.values()));
+    }
+
+    private Map<Long, Shop> loadShops(Collection<Long> ids) {
+        return listByIds(ids).stream().collect(Collectors.toMap(Shop::getId, Function.identity()));
+    }
+
     //这里需要声明一个线程池，因为下面我们需要新建一个现成来完成重构缓存
     //private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
 
@@ -206,13 +360,68 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         if (id == null){
             return Result.fail("店铺ID不能为空");
         }
+        Shop before = getById(id);
+        if (before == null) {
+            return Result.fail("店铺不存在！！");
+        }
         //1. 更新数据库
         updateById(shop);
-        //2. 删除缓存
-        stringRedisTemplate.delete(CACHE_SHOP_KEY + id);
+        //2. 事务提交后覆盖缓存、更新各个索引
+        eventPublisher.publishEvent(new ShopChangedEvent(before, getById(id)));
         return Result.ok();
     }
 
+    @Override
+    public Result saveShop(Shop shop) {
+        //1. 写入数据库
+        save(shop);
+        //2. 加入布隆过滤器
+        cacheClient.addToBloomFilter(CACHE_SHOP_KEY, shop.getId());
+        //3. 写入缓存、更新各个索引，重新查询一次拿到数据库生成的默认值
+        eventPublisher.publishEvent(new ShopChangedEvent(null, getById(shop.getId())));
+        //4. 返回店铺id
+        return Result.ok(shop.getId());
+    }
+
+    /**
+     * 商铺新增或修改的事务提交后，用最新数据覆盖缓存（同时覆盖可能存在的空值），并让所有实例删除本地缓存
+     * 商铺详情走逻辑过期，缓存里没有会被当作商铺不存在，所以这里不能删除缓存
+     */
+    @TransactionalEventListener(fallbackExecution = true, condition = "!#event.remote")
+    public void onShopChanged(ShopChangedEvent event) {
+        Shop shop = event.getAfter();
+        if (shop == null) {
+            return;
+        }
+        cacheClient.refreshWithLogicalExpire(CACHE_SHOP_KEY + shop.getId(), shop, CACHE_SHOP_LOGICAL_TTL, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 用数据库中全部的商铺id重建布隆过滤器，按id分批查询，避免一次加载整张表
+     */
+    @Override
+    public void rebuildBloomFilter() {
+        List<Long> ids = new ArrayList<>();
+        long lastId = 0L;
+        while (true) {
+            List<Shop> shops = query().select("id").gt("id", lastId).orderByAsc("id")
+                    .last("LIMIT " + SystemConstants.DEFAULT_BATCH_SIZE).list();
+            if (shops.isEmpty()) {
+                break;
+            }
+            for (Shop shop : shops) {
+                ids.add(shop.getId());
+            }
+            lastId = ids.get(ids.size() - 1);
+        }
+        cacheClient.rebuildBloomFilter(CACHE_SHOP_KEY, ids);
+        // 重建期间新增的商铺可能被RENAME覆盖掉，补加一次
+        List<Shop> added = query().select("id").gt("id", lastId).list();
+        for (Shop shop : added) {
+            cacheClient.addToBloomFilter(CACHE_SHOP_KEY, shop.getId());
+        }
+    }
+
     /*public void saveShop2Redis(Long id, Long expireSeconds){
         Shop shop = getById(id);
         RedisData redisData = new RedisData();
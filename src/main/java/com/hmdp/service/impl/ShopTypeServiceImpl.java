@@ -1,22 +1,29 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONNull;
-import cn.hutool.json.JSONUtil;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.ShopTypeSnapshot;
 import com.hmdp.entity.ShopType;
 import com.hmdp.mapper.ShopTypeMapper;
 import com.hmdp.service.IShopTypeService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
-import org.springframework.data.annotation.ReadOnlyProperty;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
-import static com.hmdp.utils.RedisConstants.CACHE_SHOP_TYPE_KEY;
+import static com.hmdp.utils.RedisConstants.*;
 
 /**
  * <p>
@@ -26,40 +33,119 @@ import static com.hmdp.utils.RedisConstants.CACHE_SHOP_TYPE_KEY;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> implements IShopTypeService {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private ObjectMapper objectMapper;
+
+    /**
+     * 本地快照，请求只读这个字段，不访问Redis
+     */
+    private volatile ShopTypeSnapshot snapshot;
+
+    private final ScheduledExecutorService refreshExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "shop-type-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PostConstruct
+    private void init() {
+        // 定时检查Redis中的版本号，变化了才重新加载快照
+        refreshExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                refreshIfChanged();
+            } catch (Exception e) {
+                log.warn("刷新商铺类型快照失败，继续使用旧快照", e);
+            }
+        }, CACHE_SHOP_TYPE_CHECK_MILLIS, CACHE_SHOP_TYPE_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        refreshExecutor.shutdownNow();
+    }
+
     @Override
     public Result queryTypeList() {
-        //1.从redis中查询商铺类型缓存
-        List<String> shopTypes = stringRedisTemplate.opsForList().range(CACHE_SHOP_TYPE_KEY, 0, -1);
-        //2. 判断是否存在
-        if (!shopTypes.isEmpty()){
-            List<ShopType> tmp = new ArrayList<>();
-            //3. 存在，直接返回
-            for (String s : shopTypes) {
-                ShopType shopType = JSONUtil.toBean(s, ShopType.class);
-                tmp.add(shopType);
-            }
-            return Result.ok(tmp);
+        return Result.ok(getSnapshot().getTypes());
+    }
 
+    @Override
+    public ShopTypeSnapshot getSnapshot() {
+        ShopTypeSnapshot current = snapshot;
+        if (current != null) {
+            return current;
         }
-        //4. 不存在，查询数据库
-        List<ShopType> tmp = query().orderByAsc("sort").list();
-        //5. 不存在，返回错误
-        if (tmp == null){
-            return Result.fail("店铺类型不存在");
+        // 第一次访问时同步加载
+        return refreshIfChanged();
+    }
+
+    @Override
+    public synchronized ShopTypeSnapshot reload() {
+        //1. 查询数据库，按sort排序
+        List<ShopType> types = query().orderByAsc("sort").list();
+        //2. 写入redis，再增加版本号通知其他实例重新加载
+        stringRedisTemplate.opsForValue().set(CACHE_SHOP_TYPE_SNAPSHOT_KEY, toJson(types), CACHE_SHOP_TYPE_TTL, TimeUnit.HOURS);
+        Long version = stringRedisTemplate.opsForValue().increment(CACHE_SHOP_TYPE_VERSION_KEY);
+        ShopTypeSnapshot loaded = newSnapshot(version == null ? 0L : version, types);
+        snapshot = loaded;
+        return loaded;
+    }
+
+    /**
+     * 比较本地快照和Redis中的版本号，不一致时重新加载
+     */
+    private synchronized ShopTypeSnapshot refreshIfChanged() {
+        String version = stringRedisTemplate.opsForValue().get(CACHE_SHOP_TYPE_VERSION_KEY);
+        ShopTypeSnapshot current = snapshot;
+        if (current != null && version != null && Long.parseLong(version) == current.getVersion()) {
+            return current;
+        }
+        //1. 版本号变了，读取redis中的快照
+        String json = stringRedisTemplate.opsForValue().get(CACHE_SHOP_TYPE_SNAPSHOT_KEY);
+        if (version == null || json == null) {
+            //2. redis中没有快照，从数据库重建
+            return reload();
+        }
+        ShopTypeSnapshot loaded = newSnapshot(Long.parseLong(version), fromJson(json));
+        snapshot = loaded;
+        log.debug("商铺类型快照已更新，版本{}", version);
+        return loaded;
+    }
+
+    /**
+     * 创建快照，同时把整个响应体序列化好
+     */
+    private ShopTypeSnapshot newSnapshot(long version, List<ShopType> types) {
+        List<ShopType> unmodifiable = Collections.unmodifiableList(types);
+        try {
+            byte[] body = objectMapper.writeValueAsBytes(Result.ok(unmodifiable));
+            String eTag = "\"" + version + "-" + Integer.toHexString(Arrays.hashCode(body)) + "\"";
+            return new ShopTypeSnapshot(version, unmodifiable, body, eTag);
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException(e);
         }
-        //6. 存在，写入redis
-        for (ShopType shopType : tmp){
-            String jsonstr = JSONUtil.toJsonStr(shopType);
-            shopTypes.add(jsonstr);
+    }
+
+    private String toJson(List<ShopType> types) {
+        try {
+            return objectMapper.writeValueAsString(types);
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException(e);
         }
-        stringRedisTemplate.opsForList().leftPushAll(CACHE_SHOP_TYPE_KEY,shopTypes);
+    }
 
-        //7. 返回
-        return Result.ok(tmp);
+    private List<ShopType> fromJson(String json) {
+        try {
+            return objectMapper.readValue(json, new TypeReference<List<ShopType>>() {
+            });
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException(e);
+        }
     }
 }
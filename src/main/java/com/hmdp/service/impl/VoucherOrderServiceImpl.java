@@ -1,6 +1,8 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.thread.ThreadUtil;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
@@ -8,30 +10,52 @@ import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillSoldOutFlags;
+import com.hmdp.utils.SeckillStockShards;
 import com.hmdp.utils.UserHolder;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
-import org.redisson.api.RLock;
-import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
 import org.springframework.beans.BeanUtils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
 import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.ORDER_POLL_MILLIS;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_GROUP;
+import static com.hmdp.utils.RedisConstants.SECKILL_STREAMS_REFRESH_MILLIS;
+import static com.hmdp.utils.RedisConstants.SECKILL_STREAMS_RETIRE_MILLIS;
 
 /**
  * <p>
@@ -54,49 +78,173 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    /**
+     * 代理对象，消费线程里调用事务方法用，启动后还没有人下单时也可用
+     */
+    @Lazy
     @Resource
-    private RedissonClient redissonClient;
-
     private IVoucherOrderService proxy;
 
+    /**
+     * 每次从消息队列读取的订单数，为1时逐条处理
+     */
+    @Value("${hmdp.seckill.order.batch-size:100}")
+    private int batchSize;
 
-    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+
+    private static final DefaultRedisScript<List> SECKILL_SCRIPT;
 
     static {
-        SECKILL_SCRIPT = new DefaultRedisScript();
+        SECKILL_SCRIPT = new DefaultRedisScript<>();
         SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
-        SECKILL_SCRIPT.setResultType(Long.class);
+        SECKILL_SCRIPT.setResultType(List.class);
+    }
+
+    /**
+     * seckill.lua的返回结果
+     */
+    private static final int SECKILL_OK = 0;
+    private static final int SECKILL_SOLD_OUT = 1;
+    private static final int SECKILL_BORROW = 3;
+    private static final Map<Integer, String> SECKILL_ERRORS = new HashMap<>();
+
+    static {
+        SECKILL_ERRORS.put(SECKILL_SOLD_OUT, "库存不足");
+        SECKILL_ERRORS.put(2, "不能重复下单");
+        SECKILL_ERRORS.put(4, "秒杀尚未开始");
+        SECKILL_ERRORS.put(5, "秒杀已经结束");
+        SECKILL_ERRORS.put(6, "优惠券不存在");
+    }
+
+    private static final DefaultRedisScript<Long> SECKILL_SHARD_SCRIPT;
+
+    static {
+        SECKILL_SHARD_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_SHARD_SCRIPT.setLocation(new ClassPathResource("seckill-shard.lua"));
+        SECKILL_SHARD_SCRIPT.setResultType(Long.class);
+    }
+
+    private static final DefaultRedisScript<Long> DEAD_LETTER_SCRIPT;
+
+    static {
+        DEAD_LETTER_SCRIPT = new DefaultRedisScript<>();
+        DEAD_LETTER_SCRIPT.setLocation(new ClassPathResource("dead-letter.lua"));
+        DEAD_LETTER_SCRIPT.setResultType(Long.class);
     }
 
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    @Resource
+    private SeckillStockShards seckillStockShards;
+
+    @Resource
+    private SeckillSoldOutFlags seckillSoldOutFlags;
+
+    /**
+     * 每个实例的消费线程数
+     */
+    @Value("${hmdp.seckill.order.workers:1}")
+    private int workers;
+
+    @Value("${server.port:8080}")
+    private int serverPort;
+
+    /**
+     * pending消息空闲多久之后回收重试
+     */
+    @Value("${hmdp.seckill.order.reclaim.min-idle:30s}")
+    private Duration reclaimMinIdle;
+
+    @Value("${hmdp.seckill.order.reclaim.interval:5s}")
+    private Duration reclaimInterval;
+
+    /**
+     * 最多投递次数，超过后转入死信队列
+     */
+    @Value("${hmdp.seckill.order.reclaim.max-deliveries:5}")
+    private long maxDeliveries;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    private ExecutorService seckillOrderExecutor;
+
+    /**
+     * 所有秒杀券分片的订单消息队列，定时从 seckill:streams 刷新
+     */
+    private volatile List<String> queueNames = Collections.emptyList();
+
+    private final ScheduledExecutorService reclaimExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "seckill-order-reclaim");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AtomicLong pendingOrders = new AtomicLong();
+    private Counter reclaimedOrders;
+    private Counter deadLetterOrders;
+    private Counter failedOrders;
 
     @PostConstruct
     private void init() {
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+        // 1.发现订单消息队列，秒杀券创建时已经建好队列和消费者组，升级前的旧队列没处理完的一起消费
+        try {
+            seckillStockShards.registerLegacyStream();
+        } catch (Exception e) {
+            log.error("登记旧的订单消息队列失败", e);
+        }
+        refreshQueueNames();
+        // 2.每个线程一个消费者，名称由 主机名:端口-序号 组成，重启后还能认领自己的pending消息
+        String instanceName = NetUtil.getLocalHostName() + ":" + serverPort;
+        seckillOrderExecutor = Executors.newFixedThreadPool(workers,
+                ThreadUtil.newNamedThreadFactory("seckill-order-", true));
+        for (int i = 0; i < workers; i++) {
+            seckillOrderExecutor.submit(new VoucherOrderHandler(
+                    Consumer.from(SECKILL_ORDER_GROUP, instanceName + "-" + i)));
+        }
+        // 3.回收线程和消费线程互不阻塞
+        reclaimedOrders = meterRegistry.counter("seckill.order.reclaim", "outcome", "succeeded");
+        failedOrders = meterRegistry.counter("seckill.order.reclaim", "outcome", "failed");
+        deadLetterOrders = meterRegistry.counter("seckill.order.reclaim", "outcome", "dead_letter");
+        meterRegistry.gauge("seckill.order.pending", pendingOrders);
+        String reclaimer = instanceName + "-reclaim";
+        reclaimExecutor.scheduleWithFixedDelay(this::refreshQueueNames,
+                SECKILL_STREAMS_REFRESH_MILLIS, SECKILL_STREAMS_REFRESH_MILLIS, TimeUnit.MILLISECONDS);
+        reclaimExecutor.scheduleWithFixedDelay(() -> reclaimPending(reclaimer),
+                reclaimInterval.toMillis(), reclaimInterval.toMillis(), TimeUnit.MILLISECONDS);
+        // 4.秒杀结束并且处理完的队列不再轮询，空闲时的开销不随秒杀券数量增长
+        reclaimExecutor.scheduleWithFixedDelay(this::retireDrainedStreams,
+                SECKILL_STREAMS_RETIRE_MILLIS, SECKILL_STREAMS_RETIRE_MILLIS, TimeUnit.MILLISECONDS);
+        log.info("订单消费者已启动，{}个线程，{}个消息队列", workers, queueNames.size());
     }
 
+    @PreDestroy
+    private void destroy() {
+        seckillOrderExecutor.shutdownNow();
+        reclaimExecutor.shutdownNow();
+    }
 
-
-    private void handleVoucherOrder(VoucherOrder voucherOrder) {
-        //1. 获取用户
-        Long userId = voucherOrder.getUserId();
-        //2. 创建锁对象，作为兜底方案
-        RLock redisLock = redissonClient.getLock("order:" + userId);
-        //3. 获取锁
-        boolean isLock = redisLock.tryLock();
-        //4. 判断是否获取锁成功
-        if (!isLock) {
-            log.error("不允许重复下单!");
-            return;
+    private void refreshQueueNames() {
+        try {
+            queueNames = seckillStockShards.streams();
+        } catch (Exception e) {
+            log.error("刷新订单消息队列失败", e);
         }
+    }
+
+    private void retireDrainedStreams() {
         try {
-            //5. 使用代理对象，由于这里是另外一个线程，
-            proxy.createVoucherOrder(voucherOrder);
-        } finally {
-            redisLock.unlock();
+            if (seckillStockShards.retireDrainedStreams() > 0) {
+                refreshQueueNames();
+            }
+        } catch (Exception e) {
+            log.error("移除已处理完的订单消息队列失败", e);
         }
     }
 
+    private void handleVoucherOrder(VoucherOrder voucherOrder) {
+        //重复创建由数据库唯一约束挡住，不需要加锁，使用代理对象让事务生效
+        proxy.createVoucherOrder(voucherOrder);
+    }
+
    /* private final BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024 * 1024);
 
 
@@ -117,91 +265,284 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     }*/
 
 
+    /**
+     * 集群模式下各个分片的队列在不同的slot，不能用一条XREADGROUP读多个队列，
+     * 依次非阻塞地读每个队列，一轮都没有消息时稍等再读
+     */
     private class VoucherOrderHandler implements Runnable {
-        String queueName = "stream.orders";
+        private final Consumer consumer;
+
+        private VoucherOrderHandler(Consumer consumer) {
+            this.consumer = consumer;
+        }
 
         @Override
         public void run() {
-            while (true) {
-                try {
-                    //1. 获取消息队列中的订单信息 XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS streams.order
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"), StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                            StreamOffset.create(queueName, ReadOffset.lastConsumed())
-                    );
-                    //2. 判断消息获取是否成功
-                    if (list == null || list.isEmpty()) {
-                        //2.1 如果获取失败，说明队列中没有消息，继续下一次循环
-                        continue;
+            while (!Thread.currentThread().isInterrupted()) {
+                int count = 0;
+                for (String queueName : queueNames) {
+                    try {
+                        count += consume(queueName);
+                    } catch (Exception e) {
+                        if (Thread.currentThread().isInterrupted()) {
+                            return;
+                        }
+                        // 处理失败的消息留在pending-list里，由回收线程重试，继续读其他队列
+                        log.error("订单处理异常，queue={}", queueName, e);
                     }
+                }
+                if (count == 0) {
+                    try {
+                        Thread.sleep(ORDER_POLL_MILLIS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        }
+
+        /**
+         * 读取并处理一个队列里的一批订单
+         * @return 处理的消息数
+         */
+        private int consume(String queueName) {
+            //1. 获取消息队列中的订单信息 XREADGROUP GROUP g1 consumer COUNT N STREAMS stream.orders:{voucherId} >
+            List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                    consumer, StreamReadOptions.empty().count(batchSize),
+                    StreamOffset.create(queueName, ReadOffset.lastConsumed())
+            );
+            //2. 判断消息获取是否成功
+            if (list == null || list.isEmpty()) {
+                return 0;
+            }
+            if (batchSize <= 1) {
+                for (MapRecord<String, Object, Object> record : list) {
                     //3. 解析消息
-                    MapRecord<String, Object, Object> record = list.get(0);
                     Map<Object, Object> values = record.getValue();
                     VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
                     //4. 如果获取成功，创建订单
                     handleVoucherOrder(voucherOrder);
                     //5. ACK确认
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", record.getId());
-
-                } catch (Exception e) {
-                    log.error("订单处理异常", e);
-                    handlePendingList();
+                    stringRedisTemplate.opsForStream().acknowledge(queueName, SECKILL_ORDER_GROUP, record.getId());
                 }
+                return list.size();
             }
+            //3. 批量模式：解析整批消息，每个优惠券一个事务创建订单
+            List<VoucherOrder> voucherOrders = new ArrayList<>(list.size());
+            for (MapRecord<String, Object, Object> record : list) {
+                voucherOrders.add(BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true));
+            }
+            Set<Long> failed = proxy.createVoucherOrders(voucherOrders);
+            //4. 成功的一次ACK确认，失败的留在pending-list里，由回收线程重试或者转入死信队列
+            List<RecordId> recordIds = new ArrayList<>(list.size());
+            for (int i = 0; i < list.size(); i++) {
+                if (!failed.contains(voucherOrders.get(i).getId())) {
+                    recordIds.add(list.get(i).getId());
+                }
+            }
+            if (!recordIds.isEmpty()) {
+                stringRedisTemplate.opsForStream().acknowledge(queueName, SECKILL_ORDER_GROUP,
+                        recordIds.toArray(new RecordId[0]));
+            }
+            return list.size();
         }
     }
 
-    private void handlePendingList() {
-        while (true) {
+    /**
+     * 回收pending-list：所有消费者名下空闲超过minIdle的消息都会被认领到回收消费者名下重试，
+     * 投递次数超过上限的消息转入死信队列后ACK，不再阻塞后面的消息
+     */
+    private void reclaimPending(String reclaimer) {
+        long pending = 0;
+        for (String queueName : queueNames) {
             try {
-                // 1.获取pending-list中的订单信息 XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS s1 0
-                List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                        Consumer.from("g1", "c1"),
-                        StreamReadOptions.empty().count(1),
-                        StreamOffset.create("stream.orders", ReadOffset.from("0"))
-                );
-                // 2.判断订单信息是否为空
-                if (list == null || list.isEmpty()) {
-                    // 如果为null，说明没有异常消息，结束循环
-                    break;
+                // 从最旧的消息开始逐页扫描整个pending-list，前面一直失败的消息不会挡住后面的
+                String start = "-";
+                while (start != null) {
+                    start = reclaimPage(queueName, reclaimer, start);
                 }
-                // 解析数据
-                MapRecord<String, Object, Object> record = list.get(0);
-                Map<Object, Object> value = record.getValue();
-                VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
-                // 3.创建订单
-                createVoucherOrder(voucherOrder);
-                // 4.确认消息 XACK
-                stringRedisTemplate.opsForStream().acknowledge("s1", "g1", record.getId());
+                PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(queueName, SECKILL_ORDER_GROUP);
+                pending += summary == null ? 0 : summary.getTotalPendingMessages();
             } catch (Exception e) {
-                log.error("处理pendding订单异常", e);
-                try {
-                    Thread.sleep(20);
-                } catch (InterruptedException interruptedException) {
-                    e.printStackTrace();
-                }
+                log.error("回收pending订单异常，queue={}", queueName, e);
+            }
+        }
+        pendingOrders.set(pending);
+    }
+
+    /**
+     * 回收一页pending消息
+     * @param start 这一页的起始消息id（包含）
+     * @return 下一页的起始消息id，扫描完时返回null
+     */
+    private String reclaimPage(String queueName, String reclaimer, String start) {
+        // 1.XPENDING stream.orders g1 start + COUNT N，按id从旧到新，过滤出空闲超过minIdle的
+        PendingMessages page = stringRedisTemplate.opsForStream()
+                .pending(queueName, SECKILL_ORDER_GROUP, Range.rightUnbounded(Range.Bound.inclusive(start)), batchSize);
+        if (page.isEmpty()) {
+            return null;
+        }
+        String next = page.size() < batchSize ? null : nextId(page.get(page.size() - 1).getIdAsString());
+        Map<String, Long> deliveries = new HashMap<>();
+        for (PendingMessage message : page) {
+            if (message.getElapsedTimeSinceLastDelivery().compareTo(reclaimMinIdle) >= 0) {
+                // 认领会再算一次投递
+                deliveries.put(message.getIdAsString(), message.getTotalDeliveryCount() + 1);
+            }
+        }
+        if (deliveries.isEmpty()) {
+            return next;
+        }
+        // 2.XCLAIM，minIdle保证多个实例同时回收时一条消息只会被一个实例认领
+        List<StringRecord> records = stringRedisTemplate.execute((RedisCallback<List<StringRecord>>) connection ->
+                ((StringRedisConnection) connection).xClaim(queueName, SECKILL_ORDER_GROUP, reclaimer,
+                        RedisStreamCommands.XClaimOptions.minIdle(reclaimMinIdle)
+                                .ids(deliveries.keySet().toArray(new String[0]))));
+        if (records == null || records.isEmpty()) {
+            return next;
+        }
+        // 3.超过投递次数上限的转入死信队列
+        List<StringRecord> retries = new ArrayList<>(records.size());
+        for (StringRecord record : records) {
+            long count = deliveries.getOrDefault(record.getId().getValue(), 0L);
+            if (count > maxDeliveries) {
+                deadLetter(record, count);
+            } else {
+                retries.add(record);
+            }
+        }
+        if (retries.isEmpty()) {
+            return next;
+        }
+        // 4.整批重试，失败的优惠券再逐条重试，找出有问题的那几条，库存不够时尽量多创建
+        List<VoucherOrder> voucherOrders = new ArrayList<>(retries.size());
+        for (StringRecord record : retries) {
+            voucherOrders.add(BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true));
+        }
+        Set<Long> failed = proxy.createVoucherOrders(voucherOrders);
+        List<StringRecord> succeeded = new ArrayList<>(retries.size());
+        for (int i = 0; i < retries.size(); i++) {
+            VoucherOrder voucherOrder = voucherOrders.get(i);
+            if (failed.contains(voucherOrder.getId())
+                    && !proxy.createVoucherOrders(Collections.singletonList(voucherOrder)).isEmpty()) {
+                log.error("重试pending订单失败，queue={}，id={}", queueName, retries.get(i).getId());
+                failedOrders.increment();
+                continue;
             }
+            succeeded.add(retries.get(i));
         }
+        if (!succeeded.isEmpty()) {
+            acknowledge(queueName, succeeded);
+            reclaimedOrders.increment(succeeded.size());
+        }
+        return next;
+    }
+
+    /**
+     * 消息id的下一个id，XPENDING的起始id是包含的，用它从上一页之后继续扫描
+     */
+    private static String nextId(String id) {
+        int dash = id.indexOf('-');
+        String millis = id.substring(0, dash);
+        long sequence = Long.parseLong(id.substring(dash + 1));
+        return millis + "-" + (sequence + 1);
+    }
+
+    /**
+     * 原消息加上来源队列、消息id和投递次数写入同一slot的死信队列，和ACK在一个脚本里原子地完成
+     */
+    private void deadLetter(StringRecord record, long deliveries) {
+        Map<String, String> value = new LinkedHashMap<>(record.getValue());
+        value.put("stream", record.getStream());
+        value.put("recordId", record.getId().getValue());
+        value.put("deliveries", String.valueOf(deliveries));
+        List<String> args = new ArrayList<>(value.size() * 2 + 2);
+        args.add(SECKILL_ORDER_GROUP);
+        args.add(record.getId().getValue());
+        value.forEach((field, v) -> {
+            args.add(field);
+            args.add(v);
+        });
+        Long moved = stringRedisTemplate.execute(DEAD_LETTER_SCRIPT,
+                Arrays.asList(record.getStream(), SeckillStockShards.deadLetterKey(record.getStream())),
+                args.toArray());
+        if (moved == null || moved == 0) {
+            return;
+        }
+        deadLetterOrders.increment();
+        log.error("订单消息投递{}次仍然失败，已转入死信队列，queue={}，id={}，value={}",
+                deliveries, record.getStream(), record.getId(), record.getValue());
+    }
+
+    private void acknowledge(String queueName, List<StringRecord> records) {
+        RecordId[] ids = records.stream().map(StringRecord::getId).toArray(RecordId[]::new);
+        stringRedisTemplate.opsForStream().acknowledge(queueName, SECKILL_ORDER_GROUP, ids);
     }
 
     @Override
     public Result seckillVoucher(Long voucherId) {
+        //已经售罄的直接拒绝，不访问Redis
+        if (seckillSoldOutFlags.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
         //获取订单id
         long orderId = redisIdWorker.nextId("order");
+        //用户固定到一个库存分片，限购只在这个分片里记录
+        Long userId = UserHolder.getUser().getId();
+        int shards = seckillStockShards.shardsOf(voucherId);
+        int shard = SeckillStockShards.shardOf(userId, shards);
 
-        Long result = stringRedisTemplate.execute(SECKILL_SCRIPT,
-                Collections.emptyList(), voucherId.toString(),
-                UserHolder.getUser().getId().toString(), String.valueOf(orderId)
-        );
-        if (result.intValue() != 0) {
-            return Result.fail(result.intValue() == 1 ? "库存不足" : "不能重复下单");
+        int code = seckill(voucherId, userId, orderId, shard, shards, false);
+        if (code == SECKILL_BORROW) {
+            //本分片库存不足，依次从后面的分片借库存
+            code = seckillWithBorrowedStock(voucherId, userId, orderId, shard, shards);
+        }
+        if (code == SECKILL_SOLD_OUT) {
+            seckillSoldOutFlags.markSoldOut(voucherId);
+        }
+        if (code != SECKILL_OK) {
+            return Result.fail(SECKILL_ERRORS.getOrDefault(code, "下单失败"));
         }
-
-        //主线程获取代理对象
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
         return Result.ok(orderId);
     }
 
+    /**
+     * 在用户所属的分片执行秒杀脚本
+     * @param borrowed 库存是否已经从其他分片借到
+     */
+    private int seckill(Long voucherId, Long userId, long orderId, int shard, int shards, boolean borrowed) {
+        List<Long> result = stringRedisTemplate.execute(SECKILL_SCRIPT,
+                Arrays.asList(SeckillStockShards.stockKey(voucherId, shard, shards),
+                        SeckillStockShards.orderKey(voucherId, shard, shards),
+                        SeckillStockShards.metaKey(voucherId, shard, shards),
+                        SeckillStockShards.streamKey(voucherId, shard, shards)),
+                voucherId.toString(), userId.toString(), String.valueOf(orderId),
+                borrowed ? "1" : "0", shards > 1 ? "1" : "0"
+        );
+        return result.get(0).intValue();
+    }
+
+    /**
+     * 从其他分片借一件库存，再回到用户所属的分片校验限购、创建订单；下单失败时把库存还回去
+     * 所有分片都借不到才算售罄
+     */
+    private int seckillWithBorrowedStock(Long voucherId, Long userId, long orderId, int shard, int shards) {
+        for (int i = 1; i < shards; i++) {
+            String stockKey = SeckillStockShards.stockKey(voucherId, (shard + i) % shards, shards);
+            Long taken = stringRedisTemplate.execute(SECKILL_SHARD_SCRIPT, Collections.singletonList(stockKey));
+            if (taken == null || taken != SECKILL_OK) {
+                continue;
+            }
+            // 这里出现异常时不知道脚本是否执行过，不归还库存，宁可少卖也不超卖
+            int code = seckill(voucherId, userId, orderId, shard, shards, true);
+            if (code != SECKILL_OK) {
+                stringRedisTemplate.opsForValue().increment(stockKey);
+            }
+            return code;
+        }
+        return SECKILL_SOLD_OUT;
+    }
+
     /*@Override
     public Result seckillVoucher(Long voucherId) {
         Long result = stringRedisTemplate.execute(SECKILL_SCRIPT,
@@ -224,29 +565,71 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     }*/
 
 
+    /**
+     * 幂等地创建订单：订单id是主键，(用户, 优惠券, 第几笔) 有唯一约束，
+     * 没有写入说明订单已经创建过，消息重复投递时直接当作成功，不重复扣减库存
+     */
+    @Override
     @Transactional
     public void createVoucherOrder(VoucherOrder voucherOrder) {
-        // 一人一单逻辑
-        Long userId = voucherOrder.getUserId();
-        Long voucherId = voucherOrder.getVoucherId();
-        synchronized (userId.toString().intern()) {
-            int count = query().eq("voucher_id", voucherId).eq("user_id", userId).count();
-            if (count > 0) {
-                log.error("你已经抢过优惠券了哦");
-                return;
-            }
-            //5. 扣减库存
-            boolean success = seckillVoucherService.update()
-                    .setSql("stock = stock - 1")
-                    .eq("voucher_id", voucherId)
-                    .gt("stock", 0)
-                    .update();
-            if (!success) {
-                log.error("库存不足");
-            }
-            //7. 将订单数据保存到表中
-            save(voucherOrder);
+        if (voucherOrder.getSeq() == null) {
+            voucherOrder.setSeq(1);
         }
+        createVoucherOrders(voucherOrder.getVoucherId(), Collections.singletonList(voucherOrder));
+    }
+
+    /**
+     * 批量创建订单：按优惠券分组，每组在自己的事务里创建，
+     * 一个优惠券库存不足只回滚这个优惠券的订单，不会让整批消息一直重新投递
+     */
+    @Override
+    public Set<Long> createVoucherOrders(List<VoucherOrder> voucherOrders) {
+        // 1.按优惠券分组，没有序号的旧消息当作第一笔
+        Map<Long, List<VoucherOrder>> groups = new LinkedHashMap<>();
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            if (voucherOrder.getSeq() == null) {
+                voucherOrder.setSeq(1);
+            }
+            groups.computeIfAbsent(voucherOrder.getVoucherId(), k -> new ArrayList<>()).add(voucherOrder);
+        }
+        // 2.逐个优惠券创建，记下失败的订单
+        Set<Long> failed = new HashSet<>();
+        groups.forEach((voucherId, orders) -> {
+            try {
+                proxy.createVoucherOrders(voucherId, orders);
+            } catch (Exception e) {
+                log.error("创建订单失败，voucherId={}，{}笔订单", voucherId, orders.size(), e);
+                for (VoucherOrder order : orders) {
+                    failed.add(order.getId());
+                }
+            }
+        });
+        return failed;
     }
-}
 
+    /**
+     * 一个优惠券的订单：一条多行INSERT，按实际写入的条数扣减一次库存
+     * 限购由Lua脚本保证，数据库唯一约束兜住消息重复投递和Redis数据丢失后的重复下单
+     */
+    @Override
+    @Transactional
+    public void createVoucherOrders(Long voucherId, List<VoucherOrder> voucherOrders) {
+        // 1.写入订单，已经存在的被跳过
+        int inserted = getBaseMapper().insertBatch(voucherOrders);
+        if (inserted < voucherOrders.size()) {
+            log.info("优惠券{}有{}笔订单已经创建过", voucherId, voucherOrders.size() - inserted);
+        }
+        if (inserted == 0) {
+            return;
+        }
+        // 2.按实际写入的条数扣减库存，库存不足时回滚这个优惠券的订单
+        boolean success = seckillVoucherService.update()
+                .setSql("stock = stock - " + inserted)
+                .eq("voucher_id", voucherId)
+                .ge("stock", inserted)
+                .update();
+        if (!success) {
+            throw new RuntimeException("库存不足，voucherId=" + voucherId + "，需要扣减" + inserted);
+        }
+    }
+}
@@ -7,15 +7,17 @@ import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
-import org.springframework.data.redis.core.StringRedisTemplate;
+import com.hmdp.utils.SeckillSoldOutFlags;
+import com.hmdp.utils.SeckillStockShards;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
+import java.time.LocalDateTime;
 import java.util.List;
 
-import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
-
 /**
  * <p>
  *  服务实现类
@@ -24,6 +26,7 @@ import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> implements IVoucherService {
 
@@ -31,7 +34,16 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     private ISeckillVoucherService seckillVoucherService;
 
     @Resource
-    private StringRedisTemplate stringRedisTemplate;
+    private SeckillStockShards seckillStockShards;
+
+    @Resource
+    private SeckillSoldOutFlags seckillSoldOutFlags;
+
+    /**
+     * 新建秒杀券的库存分片数
+     */
+    @Value("${hmdp.seckill.stock-shards:1}")
+    private int stockShards;
 
     @Override
     public Result queryVoucherOfShop(Long shopId) {
@@ -52,8 +64,41 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setStock(voucher.getStock());
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
+        seckillVoucher.setLimitPerUser(voucher.getLimitPerUser() == null ? 1 : voucher.getLimitPerUser());
         seckillVoucherService.save(seckillVoucher);
-        //保存秒杀库存到redis
-        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucher.getId(), voucher.getStock().toString());
+        //保存秒杀库存、秒杀时间和限购数量到redis，按配置拆成多个分片
+        seckillStockShards.init(seckillVoucher, stockShards);
+    }
+
+    @Override
+    public void restoreSeckillVouchers() {
+        // 只处理还没有结束的秒杀券
+        List<SeckillVoucher> seckillVouchers = seckillVoucherService.query()
+                .gt("end_time", LocalDateTime.now()).list();
+        for (SeckillVoucher seckillVoucher : seckillVouchers) {
+            seckillStockShards.restore(seckillVoucher, stockShards);
+        }
+        log.info("秒杀券信息检查完成，共{}张", seckillVouchers.size());
+    }
+
+    @Override
+    @Transactional
+    public Result restockSeckillVoucher(Long voucherId, Integer count) {
+        if (count == null || count <= 0) {
+            return Result.fail("补货数量必须大于0");
+        }
+        // 1.数据库增加库存
+        boolean success = seckillVoucherService.update()
+                .setSql("stock = stock + " + count)
+                .eq("voucher_id", voucherId)
+                .update();
+        if (!success) {
+            return Result.fail("秒杀券不存在");
+        }
+        // 2.Redis库存分片增加库存
+        seckillStockShards.restock(voucherId, count);
+        // 3.清除所有实例的售罄标记
+        seckillSoldOutFlags.clear(voucherId);
+        return Result.ok();
     }
 }
@@ -2,18 +2,39 @@ package com.hmdp.utils;
 
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
-import com.hmdp.entity.Shop;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.serializer.RedisSerializer;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -21,146 +42,941 @@ import static com.hmdp.utils.RedisConstants.*;
 @Component
 public class CacheClient {
     private final StringRedisTemplate stringRedisTemplate;
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+    private final RedisMessageListenerContainer listenerContainer;
+    private final CacheMetrics metrics;
+    private final CacheRebuildScheduler rebuildScheduler;
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate) {
+    /**
+     * key前缀 -> 缓存配置
+     */
+    private final Map<String, CacheOptions> optionsMap = new ConcurrentHashMap<>();
+    /**
+     * key前缀 -> 本地一级缓存，只有开启了本地缓存的前缀才会有
+     */
+    private final Map<String, Cache<String, LocalValue>> localCaches = new ConcurrentHashMap<>();
+    /**
+     * 缓存未命中时合并本机内对同一个key的并发加载
+     */
+    private final SingleFlight singleFlight = new SingleFlight();
+    /**
+     * key前缀 -> 布隆过滤器，只有开启了布隆过滤器的前缀才会有
+     */
+    private final Map<String, RedisBloomFilter> bloomFilters = new ConcurrentHashMap<>();
+    /**
+     * key前缀 -> 熔断器，只有开启了熔断的前缀才会有
+     */
+    private final Map<String, CircuitBreaker> circuitBreakers = new ConcurrentHashMap<>();
+    /**
+     * 热点key探测，热点key会被自动复制到本地，不管它的前缀有没有开启本地缓存
+     */
+    private final HotKeyDetector hotKeyDetector = new HotKeyDetector(
+            HOT_KEY_SAMPLE_RATE, HOT_KEY_THRESHOLD, HOT_KEY_WINDOW_MILLIS, HOT_KEY_LOCAL_TTL_MILLIS);
+    private final Cache<String, LocalValue> hotCache = Caffeine.newBuilder()
+            .maximumSize(HOT_KEY_LOCAL_MAX_SIZE)
+            .expireAfter(new LocalValueExpiry())
+            .build();
+    /**
+     * 缓存对象 -> 内容摘要，弱引用的key按对象身份比较，本地缓存淘汰了对象之后跟着被回收，
+     * 本地缓存命中时返回的是同一个对象，可以直接拿到写入或者解码时算好的摘要
+     */
+    private final Cache<Object, String> versions = Caffeine.newBuilder().weakKeys().build();
+
+    public CacheClient(StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer listenerContainer,
+                       MeterRegistry meterRegistry) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.listenerContainer = listenerContainer;
+        this.metrics = new CacheMetrics(meterRegistry);
+        this.rebuildScheduler = new CacheRebuildScheduler(CACHE_REBUILD_THREADS, CACHE_REBUILD_QUEUE_CAPACITY, metrics);
+    }
+
+    @PostConstruct
+    private void init() {
+        // 订阅失效广播，收到后删除本机的一级缓存
+        listenerContainer.addMessageListener((message, pattern) ->
+                invalidateLocal(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+        // 订阅布隆过滤器广播，消息格式为 前缀|id，id为空表示需要从Redis重新加载
+        listenerContainer.addMessageListener((message, pattern) ->
+                onBloomMessage(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(CACHE_BLOOM_CHANNEL));
+    }
+
+    /**
+     * 为某个key前缀设置缓存配置
+     * @param keyPrefix key前缀，例如 cache:shop:
+     * @param options 缓存配置
+     */
+    public void configure(String keyPrefix, CacheOptions options) {
+        optionsMap.put(keyPrefix, options);
+        if (options.isLocalCacheEnabled()) {
+            localCaches.put(keyPrefix, Caffeine.newBuilder()
+                    .maximumSize(options.getLocalMaxSize())
+                    .expireAfter(new LocalValueExpiry())
+                    .build());
+        } else {
+            localCaches.remove(keyPrefix);
+        }
+        if (options.isBloomFilterEnabled()) {
+            bloomFilters.put(keyPrefix, new RedisBloomFilter(stringRedisTemplate, CACHE_BLOOM_KEY + keyPrefix,
+                    options.getBloomExpectedInsertions(), options.getBloomFpp()));
+        } else {
+            bloomFilters.remove(keyPrefix);
+        }
+        if (options.isCircuitBreakerEnabled()) {
+            CircuitBreaker circuitBreaker = new CircuitBreaker(keyPrefix,
+                    options.getCircuitFailureThreshold(), TimeUnit.SECONDS.toMillis(options.getCircuitOpenSeconds()));
+            circuitBreakers.put(keyPrefix, circuitBreaker);
+            metrics.monitorCircuitBreaker(keyPrefix, circuitBreaker);
+        } else {
+            circuitBreakers.remove(keyPrefix);
+        }
+    }
+
+    public CacheOptions getOptions(String keyPrefix) {
+        return optionsMap.getOrDefault(keyPrefix, CacheOptions.defaults());
+    }
+
+    /**
+     * 根据完整的key找到最长匹配的前缀所使用的配置
+     */
+    private CacheOptions optionsFor(String key) {
+        String matched = matchPrefix(key);
+        return matched == null ? CacheOptions.defaults() : optionsMap.get(matched);
+    }
+
+    private String matchPrefix(String key) {
+        String matched = null;
+        for (String keyPrefix : optionsMap.keySet()) {
+            if (key.startsWith(keyPrefix) && (matched == null || keyPrefix.length() > matched.length())) {
+                matched = keyPrefix;
+            }
+        }
+        return matched;
+    }
+
+    /**
+     * 开启了分桶存储时，返回key所在的桶和字段：前缀 + b:{id/bucketSize}，字段为id；
+     * 没有开启或者id不是数字时返回null，按普通的字符串key存储
+     */
+    private String[] bucketOf(String key) {
+        String keyPrefix = matchPrefix(key);
+        if (keyPrefix == null) {
+            return null;
+        }
+        long bucketSize = optionsMap.get(keyPrefix).getBucketSize();
+        String id = key.substring(keyPrefix.length());
+        if (bucketSize <= 0 || id.isEmpty() || !StrUtil.isNumeric(id)) {
+            return null;
+        }
+        return new String[]{bucketKey(keyPrefix, Long.parseLong(id), bucketSize), id};
+    }
+
+    public static String bucketKey(String keyPrefix, long id, long bucketSize) {
+        return keyPrefix + CACHE_BUCKET_KEY + id / bucketSize;
+    }
+
+    /**
+     * 给有效期加上随机抖动，同一批写入的key不会在同一时刻过期
+     */
+    private static long jitter(CacheOptions options, long millis) {
+        double ratio = options.getTtlJitterRatio();
+        if (ratio <= 0) {
+            return millis;
+        }
+        return millis + (long) (millis * ratio * ThreadLocalRandom.current().nextDouble());
+    }
+
+    private static String staleKey(String key) {
+        return CACHE_STALE_KEY + key;
+    }
+
+    /**
+     * 删除缓存，并通知所有实例删除本地一级缓存
+     * @param key 完整的key
+     */
+    public void delete(String key) {
+        String[] bucket = bucketOf(key);
+        if (bucket == null) {
+            stringRedisTemplate.delete(key);
+        } else {
+            stringRedisTemplate.opsForHash().delete(bucket[0], bucket[1]);
+        }
+        invalidateLocal(key);
+        stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
+    }
+
+    /**
+     * 从Redis加载布隆过滤器到本地
+     * @return Redis中还没有位图时返回false，需要调用rebuildBloomFilter初始化
+     */
+    public boolean loadBloomFilter(String keyPrefix) {
+        RedisBloomFilter bloomFilter = bloomFilters.get(keyPrefix);
+        return bloomFilter != null && bloomFilter.reload();
+    }
+
+    /**
+     * 用全量id重建布隆过滤器，并通知其他实例重新加载
+     */
+    public void rebuildBloomFilter(String keyPrefix, Iterable<?> ids) {
+        RedisBloomFilter bloomFilter = bloomFilters.get(keyPrefix);
+        if (bloomFilter == null) {
+            return;
+        }
+        bloomFilter.rebuild(ids);
+        stringRedisTemplate.convertAndSend(CACHE_BLOOM_CHANNEL, keyPrefix + "|");
+    }
+
+    /**
+     * 新增数据后把id加入布隆过滤器，并通知其他实例
+     */
+    public void addToBloomFilter(String keyPrefix, Object id) {
+        RedisBloomFilter bloomFilter = bloomFilters.get(keyPrefix);
+        if (bloomFilter == null) {
+            return;
+        }
+        bloomFilter.put(id);
+        stringRedisTemplate.convertAndSend(CACHE_BLOOM_CHANNEL, keyPrefix + "|" + id);
+    }
+
+    private void onBloomMessage(String message) {
+        int index = message.lastIndexOf('|');
+        if (index < 0) {
+            return;
+        }
+        RedisBloomFilter bloomFilter = bloomFilters.get(message.substring(0, index));
+        if (bloomFilter == null) {
+            return;
+        }
+        String id = message.substring(index + 1);
+        if (id.isEmpty()) {
+            bloomFilter.reload();
+        } else {
+            bloomFilter.putLocal(id);
+        }
+    }
+
+    private boolean mightContain(String keyPrefix, Object id) {
+        RedisBloomFilter bloomFilter = bloomFilters.get(keyPrefix);
+        return bloomFilter == null || bloomFilter.mightContain(id);
+    }
+
+    /**
+     * 当前的热点key及其估算访问次数
+     */
+    public Map<String, Long> getHotKeys() {
+        return hotKeyDetector.getHotKeys();
+    }
+
+    private void invalidateLocal(String key) {
+        for (Cache<String, LocalValue> cache : localCaches.values()) {
+            cache.invalidate(key);
+        }
+        hotCache.invalidate(key);
+    }
+
+    private <R> R getLocal(String keyPrefix, String key, Class<R> type) {
+        Cache<String, LocalValue> cache = localCaches.get(keyPrefix);
+        LocalValue localValue = cache == null ? null : cache.getIfPresent(key);
+        if (localValue == null) {
+            localValue = hotCache.getIfPresent(key);
+        }
+        if (localValue == null) {
+            return null;
+        }
+        Object value = localValue.value;
+        return type.isInstance(value) ? type.cast(value) : null;
+    }
+
+    private void putLocal(String keyPrefix, String key, Object value) {
+        putLocal(keyPrefix, key, value, Long.MAX_VALUE);
+    }
+
+    /**
+     * 写入本地缓存
+     * @param maxTtlMillis 本地缓存最多存活多久，逻辑过期的数据不能在本地活过它的过期时间
+     */
+    private void putLocal(String keyPrefix, String key, Object value, long maxTtlMillis) {
+        if (value == null || maxTtlMillis <= 0) {
+            return;
+        }
+        long maxTtlNanos = TimeUnit.MILLISECONDS.toNanos(maxTtlMillis);
+        Cache<String, LocalValue> cache = localCaches.get(keyPrefix);
+        if (cache != null) {
+            long ttlNanos = Math.min(TimeUnit.SECONDS.toNanos(getOptions(keyPrefix).getLocalTtlSeconds()), maxTtlNanos);
+            cache.put(key, new LocalValue(value, ttlNanos));
+        }
+        // 热点key额外复制一份到本地，存活时间很短
+        if (hotKeyDetector.isHot(key)) {
+            long ttlNanos = Math.min(TimeUnit.MILLISECONDS.toNanos(HOT_KEY_LOCAL_TTL_MILLIS), maxTtlNanos);
+            hotCache.put(key, new LocalValue(value, ttlNanos));
+        }
+    }
+
+    private static class LocalValue {
+        private final Object value;
+        private final long ttlNanos;
+
+        private LocalValue(Object value, long ttlNanos) {
+            this.value = value;
+            this.ttlNanos = ttlNanos;
+        }
+    }
+
+    private static class LocalValueExpiry implements Expiry<String, LocalValue> {
+        @Override
+        public long expireAfterCreate(String key, LocalValue value, long currentTime) {
+            return value.ttlNanos;
+        }
+
+        @Override
+        public long expireAfterUpdate(String key, LocalValue value, long currentTime, long currentDuration) {
+            return value.ttlNanos;
+        }
+
+        @Override
+        public long expireAfterRead(String key, LocalValue value, long currentTime, long currentDuration) {
+            return currentDuration;
+        }
     }
 
     public void set(String key, Object value, Long time, TimeUnit unit) {
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit);
+        List<PendingWrite> writes = new ArrayList<>(2);
+        addWrites(writes, key, value, time, unit);
+        pipelineSet(writes);
+    }
+
+    /**
+     * 生成写缓存的命令：有效期带随机抖动，开启了stale-if-error时再写一份有效期更长的影子副本
+     */
+    private void addWrites(List<PendingWrite> writes, String key, Object value, Long time, TimeUnit unit) {
+        CacheOptions options = optionsFor(key);
+        byte[] bytes = CacheCodecs.encode(options.getCodec(), value);
+        writes.add(new PendingWrite(key, bytes, Expiration.milliseconds(jitter(options, unit.toMillis(time)))));
+        if (options.isStaleIfErrorEnabled()) {
+            writes.add(new PendingWrite(staleKey(key), bytes,
+                    Expiration.seconds(jitter(options, options.getStaleTtlSeconds()))));
+        }
+    }
+
+    private void pipelineSet(List<PendingWrite> writes) {
+        if (writes.size() == 1) {
+            PendingWrite write = writes.get(0);
+            rawSet(write.key, write.value, write.expiration);
+            return;
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (PendingWrite write : writes) {
+                doSet(connection, write.key, write.value, write.expiration);
+            }
+            return null;
+        });
     }
+
+    private static class PendingWrite {
+        private final String key;
+        private final byte[] value;
+        private final Expiration expiration;
+
+        private PendingWrite(String key, byte[] value, Expiration expiration) {
+            this.key = key;
+            this.value = value;
+            this.expiration = expiration;
+        }
+    }
+
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit) {
+        setWithLogicalExpire(key, value, time, unit, null);
+    }
+
+    /**
+     * 写入逻辑过期的缓存
+     * @param rebuildTime 本次重建耗时（毫秒），提前刷新时用来估算什么时候该开始重建
+     */
+    public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit, Long rebuildTime) {
+        writeLogical(key, value, time, unit, rebuildTime);
+    }
+
+    private RedisData writeLogical(String key, Object value, Long time, TimeUnit unit, Long rebuildTime) {
         //设置逻辑过期
-        RedisData redisData = new RedisData();
-        redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
+        CacheOptions options = optionsFor(key);
+        RedisData redisData = newRedisData(options, value, time, unit, rebuildTime);
         //写入Redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        rawSet(key, CacheCodecs.encodeLogical(options.getCodec(), redisData), Expiration.persistent());
+        return redisData;
+    }
+
+    /**
+     * 逻辑过期缓存返回的对象的内容摘要，用作ETag，不用再序列化一次
+     * @return 不是从逻辑过期缓存里得到的对象返回null
+     */
+    public String versionOf(Object value) {
+        return value == null ? null : versions.getIfPresent(value);
+    }
+
+    private void recordVersion(Object value, String version) {
+        if (value != null && version != null) {
+            versions.put(value, version);
+        }
+    }
+
+    /**
+     * 数据修改后用最新的值覆盖逻辑过期的缓存，并通知所有实例删除本地一级缓存
+     * 逻辑过期的缓存没有命中时认为数据不存在，所以修改后不能删除，只能覆盖
+     */
+    public void refreshWithLogicalExpire(String key, Object value, Long time, TimeUnit unit) {
+        setWithLogicalExpire(key, value, time, unit);
+        invalidateLocal(key);
+        stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
+    }
+
+    /**
+     * 批量写入逻辑过期的缓存，一次pipeline写完，用于缓存预热
+     * @param values id到数据的映射
+     */
+    public void setBatchWithLogicalExpire(String keyPrefix, Map<?, ?> values, Long time, TimeUnit unit) {
+        if (values.isEmpty()) {
+            return;
+        }
+        CacheOptions options = optionsFor(keyPrefix);
+        List<PendingWrite> writes = new ArrayList<>(values.size());
+        values.forEach((id, value) -> writes.add(new PendingWrite(keyPrefix + id,
+                CacheCodecs.encodeLogical(options.getCodec(), newRedisData(options, value, time, unit, null)),
+                Expiration.persistent())));
+        pipelineSet(writes);
     }
 
     public <R,ID> R  queryWithPassThrough(String keyPrefix, ID id, Class<R> type, Function <ID,R> dbFallback, Long time, TimeUnit unit) {
         String key = keyPrefix + id;
-        //1. 从redis中查询商铺缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
-        //2. 判断是否存在
-        if (StrUtil.isNotBlank(json)){
-            //3. 存在，直接返回
-            return JSONUtil.toBean(json, type);
+        //0. 先查本地一级缓存
+        R local = getLocal(keyPrefix, key, type);
+        if (local != null) {
+            metrics.request(keyPrefix, CacheMetrics.PASS_THROUGH, CacheMetrics.LOCAL_HIT);
+            return local;
         }
-
-        //判断命中的是否是空值
-        if (json != null){
-            //返回错误信息
+        //0.1 布隆过滤器判断id一定不存在，直接返回
+        if (!mightContain(keyPrefix, id)) {
+            metrics.request(keyPrefix, CacheMetrics.PASS_THROUGH, CacheMetrics.BLOOM_REJECT);
             return null;
         }
-        //4. 不存在，根据id查询数据库
-        R r = dbFallback.apply(id);
-        //5. 不存在，返回错误
-        if (r == null){
-            //将空值写入redis
-            stringRedisTemplate.opsForValue().set(key, "",CACHE_NULL_TTL, TimeUnit.MINUTES);
-            return null;
+        //1. 从redis中查询商铺缓存，并记录访问用于热点探测
+        hotKeyDetector.record(key);
+        byte[] raw = rawGet(key);
+        //2. 判断是否存在
+        if (raw != null){
+            //3. 存在，直接返回，命中的是空值时返回null
+            metrics.request(keyPrefix, CacheMetrics.PASS_THROUGH, raw.length == 0 ? CacheMetrics.NULL_HIT : CacheMetrics.HIT);
+            return decodeOrNull(keyPrefix, key, raw, type);
         }
-        //6. 存在，写入redis
-        this.set(key, r, time, unit);
-        //7. 返回
-        return r;
+        metrics.request(keyPrefix, CacheMetrics.PASS_THROUGH, CacheMetrics.MISS);
+        //4. 不存在，根据id查询数据库，本机内同一个key的并发请求只查一次
+        return singleFlight.execute(key, () -> {
+            R r;
+            try {
+                r = loadFromDb(keyPrefix, CacheMetrics.PASS_THROUGH, () -> dbFallback.apply(id));
+            } catch (RuntimeException e) {
+                // 4.1 查库失败或者熔断中，有影子副本时返回影子副本
+                return serveStale(keyPrefix, key, type, CacheMetrics.PASS_THROUGH, e);
+            }
+            //5. 不存在，返回错误
+            if (r == null){
+                //将空值写入redis
+                setNull(key);
+                return null;
+            }
+            //6. 存在，写入redis
+            this.set(key, r, time, unit);
+            putLocal(keyPrefix, key, r);
+            //7. 返回
+            return r;
+        });
     }
 
     public <R, ID> R queryWithLogicalExpire(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
         String key = keyPrefix + id;
-        // 1.从redis查询商铺缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        // 0.先查本地一级缓存，本地缓存里只会放未过期的数据
+        R local = getLocal(keyPrefix, key, type);
+        if (local != null) {
+            metrics.request(keyPrefix, CacheMetrics.LOGICAL_EXPIRE, CacheMetrics.LOCAL_HIT);
+            return local;
+        }
+        // 0.1.布隆过滤器判断id一定不存在，直接返回
+        if (!mightContain(keyPrefix, id)) {
+            metrics.request(keyPrefix, CacheMetrics.LOGICAL_EXPIRE, CacheMetrics.BLOOM_REJECT);
+            return null;
+        }
+        // 1.从redis查询商铺缓存，并记录访问用于热点探测
+        hotKeyDetector.record(key);
+        byte[] raw = rawGet(key);
         // 2.判断是否存在
-        if (StrUtil.isBlank(json)) {
-            // 3.存在，直接返回
+        if (raw == null || raw.length == 0) {
+            // 3.不存在，直接返回
+            metrics.request(keyPrefix, CacheMetrics.LOGICAL_EXPIRE, raw == null ? CacheMetrics.MISS : CacheMetrics.NULL_HIT);
             return null;
         }
-        // 4.命中，需要先把json反序列化为对象
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        R r = JSONUtil.toBean((JSONObject) redisData.getData(), type);
-        LocalDateTime expireTime = redisData.getExpireTime();
-        // 5.判断是否过期
-        if(expireTime.isAfter(LocalDateTime.now())) {
-            // 5.1.未过期，直接返回店铺信息
+        // 4.命中，需要先把数据反序列化为对象
+        RedisData redisData = CacheCodecs.decodeLogical(raw, type);
+        R r = type.cast(redisData.getData());
+        recordVersion(r, redisData.getVersion());
+        long expireMillis = toEpochMilli(redisData.getExpireTime());
+        long remainMillis = expireMillis - System.currentTimeMillis();
+        // 5.判断是否过期，开启提前刷新时还要判断是否该提前重建
+        metrics.request(keyPrefix, CacheMetrics.LOGICAL_EXPIRE, remainMillis > 0 ? CacheMetrics.HIT : CacheMetrics.STALE_HIT);
+        if (remainMillis > 0 && !shouldRefreshEarly(keyPrefix, redisData, remainMillis)) {
+            // 5.1.未过期，放入本地缓存后直接返回店铺信息
+            putLocal(keyPrefix, key, r, remainMillis);
             return r;
         }
-        // 5.2.已过期，需要缓存重建
+        // 5.2.已过期或者需要提前刷新，需要缓存重建
         // 6.缓存重建
-        // 6.1.获取互斥锁
-        String lockKey = LOCK_SHOP_KEY + id;
-        boolean isLock = tryLock(lockKey);
-        // 6.2.判断是否获取锁成功
-        if (isLock){
-            // 6.3.成功，开启独立线程，实现缓存重建
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
-                try {
-                    // 查询数据库
-                    R newR = dbFallback.apply(id);
-                    // 重建缓存
-                    this.setWithLogicalExpire(key, newR, time, unit);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }finally {
-                    // 释放锁
-                    unlock(lockKey);
+        rebuildLogicalAsync(keyPrefix, id, dbFallback, time, unit);
+        // 6.4.返回旧的商铺信息（提前刷新时它还没有过期）
+        if (remainMillis > 0) {
+            putLocal(keyPrefix, key, r, remainMillis);
+        }
+        return r;
+    }
+
+    private <R, ID> void rebuildLogicalAsync(String keyPrefix, ID id, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        String key = keyPrefix + id;
+        // 6.1.本机已经在重建这个key，或者数据库熔断中，不用再去抢锁，继续返回旧值
+        if (rebuildScheduler.isPending(key) || isCircuitOpen(keyPrefix)) {
+            return;
+        }
+        // 6.2.获取互斥锁，锁的key由缓存key推导，不同前缀的相同id互不影响
+        String lockKey = lockKey(key);
+        if (!tryLock(lockKey)) {
+            metrics.lockContention(keyPrefix, CacheMetrics.LOGICAL_EXPIRE);
+            return;
+        }
+        // 6.3.成功，提交给重建调度器，队列已满或重复提交时直接释放锁
+        boolean submitted = rebuildScheduler.submit(key, () -> {
+            try {
+                // 查询数据库，并记录重建耗时，查库失败时缓存里的旧值保持不变
+                long begin = System.nanoTime();
+                R newR = loadFromDb(keyPrefix, CacheMetrics.LOGICAL_EXPIRE, () -> dbFallback.apply(id));
+                long rebuildTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+                // 重建缓存
+                RedisData redisData = writeLogical(key, newR, time, unit, rebuildTime);
+                recordVersion(newR, redisData.getVersion());
+                putLocal(keyPrefix, key, newR, unit.toMillis(time));
+            } finally {
+                // 释放锁
+                unlock(lockKey);
+            }
+        });
+        if (!submitted) {
+            unlock(lockKey);
+        }
+    }
+
+    /**
+     * 批量查询，缓存未命中的部分只查一次数据库，语义与queryWithPassThrough一致
+     * @param dbFallback 根据一批id查询数据库，返回id到数据的映射，不存在的id不用放进去
+     * @return id到数据的映射，顺序与ids一致，不存在的id不在结果中
+     */
+    public <R, ID> Map<ID, R> queryBatch(String keyPrefix, Collection<ID> ids, Class<R> type,
+                                         Function<Collection<ID>, Map<ID, R>> dbFallback, Long time, TimeUnit unit) {
+        return queryBatch(keyPrefix, ids, type, dbFallback, time, unit, false);
+    }
+
+    /**
+     * 批量查询，语义与queryWithLogicalExpire一致：过期的数据先返回旧值，再在后台逐个重建
+     * 完全不在缓存中的数据会查库后以逻辑过期的方式写入
+     */
+    public <R, ID> Map<ID, R> queryBatchWithLogicalExpire(String keyPrefix, Collection<ID> ids, Class<R> type,
+                                                          Function<Collection<ID>, Map<ID, R>> dbFallback, Long time, TimeUnit unit) {
+        return queryBatch(keyPrefix, ids, type, dbFallback, time, unit, true);
+    }
+
+    private <R, ID> Map<ID, R> queryBatch(String keyPrefix, Collection<ID> ids, Class<R> type,
+                                          Function<Collection<ID>, Map<ID, R>> dbFallback, Long time, TimeUnit unit,
+                                          boolean logicalExpire) {
+        Map<ID, R> found = new HashMap<>(ids.size() * 2);
+        // 1.先查本地缓存，布隆过滤器判断一定不存在的直接跳过
+        List<ID> remoteIds = new ArrayList<>();
+        for (ID id : new LinkedHashSet<>(ids)) {
+            R local = getLocal(keyPrefix, keyPrefix + id, type);
+            if (local != null) {
+                found.put(id, local);
+            } else if (mightContain(keyPrefix, id)) {
+                remoteIds.add(id);
+            } else {
+                metrics.request(keyPrefix, CacheMetrics.BATCH, CacheMetrics.BLOOM_REJECT);
+            }
+        }
+        metrics.request(keyPrefix, CacheMetrics.BATCH, CacheMetrics.LOCAL_HIT, found.size());
+        // 2.剩下的一次MGET从redis查询
+        List<ID> missIds = new ArrayList<>();
+        if (!remoteIds.isEmpty()) {
+            List<String> keys = new ArrayList<>(remoteIds.size());
+            for (ID id : remoteIds) {
+                String key = keyPrefix + id;
+                hotKeyDetector.record(key);
+                keys.add(key);
+            }
+            List<byte[]> values = rawMultiGet(keys);
+            for (int i = 0; i < remoteIds.size(); i++) {
+                ID id = remoteIds.get(i);
+                byte[] raw = values == null ? null : values.get(i);
+                if (raw == null) {
+                    // 2.1.未命中，需要查数据库
+                    missIds.add(id);
+                } else if (raw.length == 0) {
+                    metrics.request(keyPrefix, CacheMetrics.BATCH, CacheMetrics.NULL_HIT);
+                } else {
+                    // 2.2.命中，空值在上面已经跳过
+                    metrics.request(keyPrefix, CacheMetrics.BATCH, CacheMetrics.HIT);
+                    R r = logicalExpire ? decodeLogicalOrRebuild(keyPrefix, id, raw, type, dbFallback, time, unit)
+                            : decodeOrNull(keyPrefix, keyPrefix + id, raw, type);
+                    found.put(id, r);
                 }
-            });
+            }
         }
-        // 6.4.返回过期的商铺信息
+        // 3.未命中的一次查询数据库，再用pipeline一次写回redis
+        if (!missIds.isEmpty()) {
+            metrics.request(keyPrefix, CacheMetrics.BATCH, CacheMetrics.MISS, missIds.size());
+            Map<ID, R> loaded = null;
+            try {
+                loaded = loadFromDb(keyPrefix, CacheMetrics.BATCH, () -> dbFallback.apply(missIds));
+            } catch (RuntimeException e) {
+                // 3.1.查库失败或者熔断中，用影子副本补上能补的部分
+                found.putAll(serveStaleBatch(keyPrefix, missIds, type, e));
+            }
+            if (loaded != null) {
+                writeBatch(keyPrefix, missIds, loaded, found, time, unit, logicalExpire);
+            }
+        }
+        // 4.按照传入的顺序返回
+        Map<ID, R> result = new LinkedHashMap<>(found.size() * 2);
+        for (ID id : ids) {
+            R r = found.get(id);
+            if (r != null) {
+                result.put(id, r);
+            }
+        }
+        return result;
+    }
+
+    private <R, ID> void writeBatch(String keyPrefix, List<ID> missIds, Map<ID, R> loaded, Map<ID, R> found,
+                                    Long time, TimeUnit unit, boolean logicalExpire) {
+        CacheOptions options = getOptions(keyPrefix);
+        List<PendingWrite> writes = new ArrayList<>(missIds.size());
+        for (ID id : missIds) {
+            String key = keyPrefix + id;
+            R r = loaded.get(id);
+            if (r == null) {
+                writes.add(new PendingWrite(key, new byte[0], Expiration.from(CACHE_NULL_TTL, TimeUnit.MINUTES)));
+                continue;
+            }
+            found.put(id, r);
+            if (logicalExpire) {
+                // 本地缓存不能比逻辑过期时间活得更久，和单个key的路径一样取两者中较小的
+                RedisData redisData = newRedisData(options, r, time, unit, null);
+                putLocal(keyPrefix, key, r, toEpochMilli(redisData.getExpireTime()) - System.currentTimeMillis());
+                writes.add(new PendingWrite(key, CacheCodecs.encodeLogical(options.getCodec(), redisData), Expiration.persistent()));
+                recordVersion(r, redisData.getVersion());
+            } else {
+                putLocal(keyPrefix, key, r);
+                addWrites(writes, key, r, time, unit);
+            }
+        }
+        if (!writes.isEmpty()) {
+            pipelineSet(writes);
+        }
+    }
+
+    private <R, ID> R decodeLogicalOrRebuild(String keyPrefix, ID id, byte[] raw, Class<R> type,
+                                             Function<Collection<ID>, Map<ID, R>> dbFallback, Long time, TimeUnit unit) {
+        RedisData redisData = CacheCodecs.decodeLogical(raw, type);
+        R r = type.cast(redisData.getData());
+        recordVersion(r, redisData.getVersion());
+        long remainMillis = toEpochMilli(redisData.getExpireTime()) - System.currentTimeMillis();
+        if (remainMillis > 0 && !shouldRefreshEarly(keyPrefix, redisData, remainMillis)) {
+            putLocal(keyPrefix, keyPrefix + id, r, remainMillis);
+            return r;
+        }
+        rebuildLogicalAsync(keyPrefix, id, i -> {
+            Map<ID, R> loaded = dbFallback.apply(Collections.singletonList(i));
+            return loaded == null ? null : loaded.get(i);
+        }, time, unit);
         return r;
     }
 
+    private static RedisData newRedisData(CacheOptions options, Object value, Long time, TimeUnit unit, Long rebuildTime) {
+        RedisData redisData = new RedisData();
+        redisData.setData(value);
+        redisData.setExpireTime(LocalDateTime.now().plus(Duration.ofMillis(jitter(options, unit.toMillis(time)))));
+        redisData.setRebuildTime(rebuildTime);
+        return redisData;
+    }
+
+    /**
+     * XFetch提前刷新：重建越慢、离过期越近，越有可能提前触发重建，
+     * 这样热点key会在过期前被某一个请求在后台刷新，读请求看不到过期数据
+     * 判断公式：now - rebuildTime * beta * ln(random) >= expireTime
+     */
+    private boolean shouldRefreshEarly(String keyPrefix, RedisData redisData, long remainMillis) {
+        CacheOptions options = getOptions(keyPrefix);
+        Long rebuildTime = redisData.getRebuildTime();
+        if (!options.isEarlyRefreshEnabled() || rebuildTime == null || rebuildTime <= 0) {
+            return false;
+        }
+        double gap = -rebuildTime * options.getEarlyRefreshBeta() * Math.log(ThreadLocalRandom.current().nextDouble());
+        return gap >= remainMillis;
+    }
+
+    private static long toEpochMilli(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
     public <R, ID> R queryWithMutex(
             String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
         String key = keyPrefix + id;
-        // 1.从redis查询商铺缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        // 2.判断是否存在
-        if (StrUtil.isNotBlank(shopJson)) {
-            // 3.存在，直接返回
-            return JSONUtil.toBean(shopJson, type);
+        // 0.先查本地一级缓存
+        R local = getLocal(keyPrefix, key, type);
+        if (local != null) {
+            metrics.request(keyPrefix, CacheMetrics.MUTEX, CacheMetrics.LOCAL_HIT);
+            return local;
         }
-        // 判断命中的是否是空值
-        if (shopJson != null) {
-            // 返回一个错误信息
+        // 0.1.布隆过滤器判断id一定不存在，直接返回
+        if (!mightContain(keyPrefix, id)) {
+            metrics.request(keyPrefix, CacheMetrics.MUTEX, CacheMetrics.BLOOM_REJECT);
             return null;
         }
+        // 1.从redis查询商铺缓存，并记录访问用于热点探测
+        hotKeyDetector.record(key);
+        byte[] raw = rawGet(key);
+        // 2.判断是否存在
+        if (raw != null) {
+            // 3.存在，直接返回，命中的是空值时返回null
+            metrics.request(keyPrefix, CacheMetrics.MUTEX, raw.length == 0 ? CacheMetrics.NULL_HIT : CacheMetrics.HIT);
+            return decodeOrNull(keyPrefix, key, raw, type);
+        }
+        metrics.request(keyPrefix, CacheMetrics.MUTEX, CacheMetrics.MISS);
 
-        // 4.实现缓存重建
-        // 4.1.获取互斥锁
-        String lockKey = LOCK_SHOP_KEY + id;
-        R r = null;
+        // 4.实现缓存重建，本机内同一个key只有一个线程去重建，其余线程等待它的结果
+        return singleFlight.execute(key, () -> rebuildWithMutex(keyPrefix, id, type, dbFallback, time, unit));
+    }
+
+    private <R, ID> R rebuildWithMutex(
+            String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        String key = keyPrefix + id;
+        String lockKey = lockKey(key);
+        long waitMillis = MUTEX_RETRY_MIN_MILLIS;
+        while (true) {
+            // 4.1.获取互斥锁，这把锁只用来在多个实例之间仲裁
+            if (tryLock(lockKey)) {
+                try {
+                    // 4.2.获取锁成功，再次检查缓存，可能其他实例已经重建好了
+                    byte[] raw = rawGet(key);
+                    if (raw != null) {
+                        return decodeOrNull(keyPrefix, key, raw, type);
+                    }
+                    // 4.3.根据id查询数据库，失败或者熔断中时返回影子副本
+                    R r;
+                    try {
+                        r = loadFromDb(keyPrefix, CacheMetrics.MUTEX, () -> dbFallback.apply(id));
+                    } catch (RuntimeException e) {
+                        return serveStale(keyPrefix, key, type, CacheMetrics.MUTEX, e);
+                    }
+                    // 5.不存在，将空值写入redis
+                    if (r == null) {
+                        setNull(key);
+                        return null;
+                    }
+                    // 6.存在，写入redis
+                    this.set(key, r, time, unit);
+                    putLocal(keyPrefix, key, r);
+                    return r;
+                } finally {
+                    // 7.释放锁
+                    unlock(lockKey);
+                }
+            }
+            // 4.4.锁在其他实例手里，只有本机的这一个线程等待，其余线程都挂在singleFlight上
+            metrics.lockContention(keyPrefix, CacheMetrics.MUTEX);
+            try {
+                Thread.sleep(waitMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            waitMillis = Math.min(waitMillis * 2, MUTEX_RETRY_MAX_MILLIS);
+            byte[] raw = rawGet(key);
+            if (raw != null) {
+                return decodeOrNull(keyPrefix, key, raw, type);
+            }
+        }
+    }
+
+    /**
+     * 查询数据库，经过熔断器并记录耗时
+     * @throws RuntimeException 熔断打开时直接抛出，不访问数据库
+     */
+    private <T> T loadFromDb(String keyPrefix, String strategy, Supplier<T> loader) {
+        CircuitBreaker circuitBreaker = circuitBreakers.get(keyPrefix);
+        if (circuitBreaker != null && !circuitBreaker.allowRequest()) {
+            throw new RuntimeException("数据库熔断中，暂停查库：" + keyPrefix);
+        }
+        long begin = System.nanoTime();
         try {
-            boolean isLock = tryLock(lockKey);
-            // 4.2.判断是否获取成功
-            if (!isLock) {
-                // 4.3.获取锁失败，休眠并重试
-                Thread.sleep(50);
-                return queryWithMutex(keyPrefix, id, type, dbFallback, time, unit);
-            }
-            // 4.4.获取锁成功，根据id查询数据库
-            r = dbFallback.apply(id);
-            // 5.不存在，返回错误
-            if (r == null) {
-                // 将空值写入redis
-                stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
-                // 返回错误信息
-                return null;
+            T t = loader.get();
+            if (circuitBreaker != null) {
+                circuitBreaker.onSuccess();
             }
-            // 6.存在，写入redis
-            this.set(key, r, time, unit);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        }finally {
-            // 7.释放锁
-            unlock(lockKey);
+            return t;
+        } catch (RuntimeException e) {
+            if (circuitBreaker != null) {
+                circuitBreaker.onFailure();
+            }
+            throw e;
+        } finally {
+            metrics.rebuild(keyPrefix, strategy, System.nanoTime() - begin);
+        }
+    }
+
+    private boolean isCircuitOpen(String keyPrefix) {
+        CircuitBreaker circuitBreaker = circuitBreakers.get(keyPrefix);
+        return circuitBreaker != null && circuitBreaker.isOpen();
+    }
+
+    /**
+     * 查库失败时返回影子副本，没有开启stale-if-error或者没有影子副本时原样抛出异常
+     */
+    private <R> R serveStale(String keyPrefix, String key, Class<R> type, String strategy, RuntimeException e) {
+        if (!getOptions(keyPrefix).isStaleIfErrorEnabled()) {
+            throw e;
+        }
+        byte[] raw = rawGet(staleKey(key));
+        if (raw == null || raw.length == 0) {
+            throw e;
+        }
+        metrics.request(keyPrefix, strategy, CacheMetrics.STALE_ON_ERROR);
+        log.warn("查库失败，返回影子副本，key={}，原因：{}", key, e.getMessage());
+        // 影子副本不放入本地缓存，数据库恢复后下一次请求就能重建
+        return CacheCodecs.decode(raw, type);
+    }
+
+    private <R, ID> Map<ID, R> serveStaleBatch(String keyPrefix, List<ID> ids, Class<R> type, RuntimeException e) {
+        if (!getOptions(keyPrefix).isStaleIfErrorEnabled()) {
+            throw e;
+        }
+        List<String> keys = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            keys.add(staleKey(keyPrefix + id));
+        }
+        List<byte[]> values = rawMultiGet(keys);
+        Map<ID, R> stale = new HashMap<>();
+        for (int i = 0; i < ids.size(); i++) {
+            byte[] raw = values == null ? null : values.get(i);
+            if (raw != null && raw.length > 0) {
+                stale.put(ids.get(i), CacheCodecs.decode(raw, type));
+            }
+        }
+        if (stale.isEmpty()) {
+            throw e;
         }
-        // 8.返回
+        metrics.request(keyPrefix, CacheMetrics.BATCH, CacheMetrics.STALE_ON_ERROR, stale.size());
+        log.warn("批量查库失败，返回{}个影子副本，原因：{}", stale.size(), e.getMessage());
+        return stale;
+    }
+
+    private <R> R decodeOrNull(String keyPrefix, String key, byte[] raw, Class<R> type) {
+        if (raw.length == 0) {
+            // 命中的是空值
+            return null;
+        }
+        R r = CacheCodecs.decode(raw, type);
+        putLocal(keyPrefix, key, r);
         return r;
     }
 
+    private byte[] rawGet(String key) {
+        String[] bucket = bucketOf(key);
+        if (bucket == null) {
+            byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+            return stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(rawKey));
+        }
+        byte[] rawKey = bucket[0].getBytes(StandardCharsets.UTF_8);
+        byte[] field = bucket[1].getBytes(StandardCharsets.UTF_8);
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.hGet(rawKey, field));
+    }
+
+    /**
+     * 批量读取，普通key用一次MGET，分桶存储的key用pipeline执行HGET
+     */
+    @SuppressWarnings("unchecked")
+    private List<byte[]> rawMultiGet(List<String> keys) {
+        List<String[]> buckets = new ArrayList<>(keys.size());
+        boolean bucketed = false;
+        for (String key : keys) {
+            String[] bucket = bucketOf(key);
+            bucketed |= bucket != null;
+            buckets.add(bucket);
+        }
+        if (!bucketed) {
+            byte[][] rawKeys = new byte[keys.size()][];
+            for (int i = 0; i < rawKeys.length; i++) {
+                rawKeys[i] = keys.get(i).getBytes(StandardCharsets.UTF_8);
+            }
+            return stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection -> connection.mGet(rawKeys));
+        }
+        List<Object> values = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int i = 0; i < keys.size(); i++) {
+                String[] bucket = buckets.get(i);
+                if (bucket == null) {
+                    connection.get(keys.get(i).getBytes(StandardCharsets.UTF_8));
+                } else {
+                    connection.hGet(bucket[0].getBytes(StandardCharsets.UTF_8), bucket[1].getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            return null;
+        }, RedisSerializer.byteArray());
+        return (List<byte[]>) (List<?>) values;
+    }
+
+    private void rawSet(String key, byte[] value, Expiration expiration) {
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            doSet(connection, key, value, expiration);
+            return null;
+        });
+    }
+
+    /**
+     * 写入一个key，分桶存储时写入桶里的字段
+     * 哈希的字段不能单独设置过期时间，所以分桶存储只支持逻辑过期的数据；
+     * 空值不写入，不存在的id交给布隆过滤器拦截
+     */
+    private void doSet(RedisConnection connection, String key, byte[] value, Expiration expiration) {
+        String[] bucket = bucketOf(key);
+        if (bucket == null) {
+            connection.set(key.getBytes(StandardCharsets.UTF_8), value, expiration, RedisStringCommands.SetOption.upsert());
+            return;
+        }
+        if (value.length == 0) {
+            return;
+        }
+        if (!expiration.isPersistent()) {
+            throw new IllegalStateException("分桶存储只支持逻辑过期的数据：" + key);
+        }
+        connection.hSet(bucket[0].getBytes(StandardCharsets.UTF_8), bucket[1].getBytes(StandardCharsets.UTF_8), value);
+    }
+
+    /**
+     * 写入空值，防止缓存穿透
+     */
+    private void setNull(String key) {
+        rawSet(key, new byte[0], Expiration.from(CACHE_NULL_TTL, TimeUnit.MINUTES));
+        // 数据已经不存在了，影子副本也不能再返回
+        if (optionsFor(key).isStaleIfErrorEnabled()) {
+            stringRedisTemplate.delete(staleKey(key));
+        }
+    }
+
+    private static String lockKey(String key) {
+        return CACHE_LOCK_KEY + key;
+    }
+
     private boolean tryLock(String key) {
         Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS);
         return BooleanUtil.isTrue(flag);
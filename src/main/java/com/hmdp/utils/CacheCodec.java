@@ -0,0 +1,16 @@
+package com.hmdp.utils;
+
+/**
+ * 缓存值的编解码器，CacheClient通过它把对象写入Redis
+ */
+public interface CacheCodec {
+
+    /**
+     * 编码器id，写在二进制头部用于读取时选择解码器
+     */
+    byte id();
+
+    byte[] encode(Object value);
+
+    <T> T decode(byte[] bytes, int offset, int length, Class<T> type);
+}
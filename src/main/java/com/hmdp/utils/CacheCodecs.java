@@ -0,0 +1,115 @@
+package com.hmdp.utils;
+
+import cn.hutool.crypto.digest.DigestUtil;
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+
+/**
+ * 缓存值的存储格式
+ * 1. JSON编码不加头部，和旧版本写入的数据完全一样，灰度期间新旧实例可以互相读
+ * 2. 其他编码加4字节头部：[0x00][格式版本][编码器id][标记位]，
+ *    逻辑过期的数据在头部后面再跟两个long：过期时间戳、重建耗时，
+ *    读逻辑过期数据时只需要解析一次payload
+ * 3. 逻辑过期的数据带一个内容摘要：JSON编码写在RedisData里，其他编码在读取时对payload直接取摘要，都不需要再序列化一次
+ * JSON文本不可能以0x00开头，所以根据第一个字节就能区分新旧格式
+ */
+public final class CacheCodecs {
+    public static final CacheCodec JSON = new JsonCacheCodec();
+    public static final CacheCodec SMILE = new SmileCacheCodec();
+
+    private static final byte MAGIC = 0;
+    private static final byte VERSION = 1;
+    private static final byte FLAG_LOGICAL = 1;
+    private static final int HEADER_LENGTH = 4;
+    private static final int LOGICAL_LENGTH = 16;
+
+    private CacheCodecs() {
+    }
+
+    public static CacheCodec of(byte id) {
+        switch (id) {
+            case JsonCacheCodec.ID:
+                return JSON;
+            case SmileCacheCodec.ID:
+                return SMILE;
+            default:
+                throw new IllegalStateException("未知的缓存编码器：" + id);
+        }
+    }
+
+    public static byte[] encode(CacheCodec codec, Object value) {
+        if (codec.id() == JsonCacheCodec.ID) {
+            return codec.encode(value);
+        }
+        byte[] payload = codec.encode(value);
+        return ByteBuffer.allocate(HEADER_LENGTH + payload.length)
+                .put(MAGIC).put(VERSION).put(codec.id()).put((byte) 0)
+                .put(payload)
+                .array();
+    }
+
+    public static byte[] encodeLogical(CacheCodec codec, RedisData redisData) {
+        if (codec.id() == JsonCacheCodec.ID) {
+            redisData.setVersion(DigestUtil.sha1Hex(codec.encode(redisData.getData())));
+            return codec.encode(redisData);
+        }
+        byte[] payload = codec.encode(redisData.getData());
+        redisData.setVersion(DigestUtil.sha1Hex(payload));
+        Long rebuildTime = redisData.getRebuildTime();
+        return ByteBuffer.allocate(HEADER_LENGTH + LOGICAL_LENGTH + payload.length)
+                .put(MAGIC).put(VERSION).put(codec.id()).put(FLAG_LOGICAL)
+                .putLong(redisData.getExpireTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli())
+                .putLong(rebuildTime == null ? -1L : rebuildTime)
+                .put(payload)
+                .array();
+    }
+
+    public static <R> R decode(byte[] raw, Class<R> type) {
+        if (raw[0] != MAGIC) {
+            return JSON.decode(raw, 0, raw.length, type);
+        }
+        checkVersion(raw);
+        int offset = (raw[3] & FLAG_LOGICAL) != 0 ? HEADER_LENGTH + LOGICAL_LENGTH : HEADER_LENGTH;
+        return of(raw[2]).decode(raw, offset, raw.length - offset, type);
+    }
+
+    /**
+     * 解码逻辑过期的数据，返回的RedisData中data已经是type类型
+     */
+    public static RedisData decodeLogical(byte[] raw, Class<?> type) {
+        RedisData redisData;
+        if (raw[0] != MAGIC) {
+            String json = new String(raw, StandardCharsets.UTF_8);
+            redisData = JSONUtil.toBean(json, RedisData.class);
+            redisData.setData(JSONUtil.toBean((JSONObject) redisData.getData(), type));
+            return redisData;
+        }
+        checkVersion(raw);
+        if ((raw[3] & FLAG_LOGICAL) == 0) {
+            throw new IllegalStateException("缓存数据不是逻辑过期格式");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(raw, HEADER_LENGTH, LOGICAL_LENGTH);
+        long expireMillis = buffer.getLong();
+        long rebuildTime = buffer.getLong();
+        int offset = HEADER_LENGTH + LOGICAL_LENGTH;
+        redisData = new RedisData();
+        redisData.setExpireTime(LocalDateTime.ofInstant(Instant.ofEpochMilli(expireMillis), ZoneId.systemDefault()));
+        redisData.setRebuildTime(rebuildTime < 0 ? null : rebuildTime);
+        redisData.setData(of(raw[2]).decode(raw, offset, raw.length - offset, type));
+        redisData.setVersion(DigestUtil.sha1Hex(Arrays.copyOfRange(raw, offset, raw.length)));
+        return redisData;
+    }
+
+    private static void checkVersion(byte[] raw) {
+        if (raw.length < HEADER_LENGTH || raw[1] > VERSION) {
+            throw new IllegalStateException("不支持的缓存格式版本：" + (raw.length > 1 ? raw[1] : -1));
+        }
+    }
+}
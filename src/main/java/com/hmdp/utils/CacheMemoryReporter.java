@@ -0,0 +1,115 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.IdUtil;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.ValueEncoding;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * 缓存内存报告：把一批样本数据分别按 每条一个字符串key 和 分桶哈希 两种布局写到临时key，
+ * 用MEMORY USAGE统计两种布局下每条数据占用的字节数，统计完删除临时key
+ * 分桶能不能省内存取决于桶是否使用listpack/ziplist编码，报告里会带上桶的编码和Redis的相关配置
+ */
+@Component
+public class CacheMemoryReporter {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    /**
+     * @param keyPrefix 样本所属的key前缀，用这个前缀配置的编码器编码
+     * @param samples id到数据的映射
+     * @param bucketSize 每个桶的条目数
+     */
+    public Map<String, Object> report(String keyPrefix, Map<Long, ?> samples, long bucketSize) {
+        CacheCodec codec = cacheClient.getOptions(keyPrefix).getCodec();
+        String tmpPrefix = "memtest:" + IdUtil.fastSimpleUUID() + ":";
+        String stringPrefix = tmpPrefix + "s:";
+        // 1.按照两种布局写入临时key
+        Map<String, byte[]> strings = new LinkedHashMap<>(samples.size() * 2);
+        Map<String, Map<byte[], byte[]>> buckets = new LinkedHashMap<>();
+        samples.forEach((id, value) -> {
+            RedisData redisData = new RedisData();
+            redisData.setData(value);
+            redisData.setExpireTime(LocalDateTime.now());
+            byte[] bytes = CacheCodecs.encodeLogical(codec, redisData);
+            strings.put(stringPrefix + id, bytes);
+            buckets.computeIfAbsent(CacheClient.bucketKey(tmpPrefix, id, bucketSize), k -> new LinkedHashMap<>())
+                    .put(String.valueOf(id).getBytes(StandardCharsets.UTF_8), bytes);
+        });
+        List<String> tmpKeys = new ArrayList<>(strings.keySet());
+        tmpKeys.addAll(buckets.keySet());
+        try {
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                strings.forEach((key, value) -> connection.set(raw(key), value));
+                buckets.forEach((key, fields) -> connection.hMSet(raw(key), fields));
+                return null;
+            });
+            // 2.统计两种布局的内存占用和桶的编码
+            long stringBytes = memoryUsage(strings.keySet());
+            long bucketBytes = memoryUsage(buckets.keySet());
+            Map<String, Integer> encodings = new TreeMap<>();
+            Properties config = stringRedisTemplate.execute((RedisConnection connection) -> {
+                for (String key : buckets.keySet()) {
+                    ValueEncoding encoding = connection.encodingOf(raw(key));
+                    encodings.merge(encoding == null ? "unknown" : encoding.raw(), 1, Integer::sum);
+                }
+                return connection.getConfig("hash-max-*");
+            });
+            // 3.汇总
+            int count = samples.size();
+            Map<String, Object> report = new LinkedHashMap<>();
+            report.put("entities", count);
+            report.put("codec", codec.getClass().getSimpleName());
+            report.put("stringBytes", stringBytes);
+            report.put("stringBytesPerEntity", count == 0 ? 0 : stringBytes / count);
+            report.put("bucketSize", bucketSize);
+            report.put("buckets", buckets.size());
+            report.put("bucketBytes", bucketBytes);
+            report.put("bucketBytesPerEntity", count == 0 ? 0 : bucketBytes / count);
+            report.put("saving", stringBytes == 0 ? 0 : String.format("%.1f%%", 100.0 * (stringBytes - bucketBytes) / stringBytes));
+            report.put("bucketEncodings", encodings);
+            report.put("redisConfig", config);
+            return report;
+        } finally {
+            stringRedisTemplate.delete(tmpKeys);
+        }
+    }
+
+    private long memoryUsage(Set<String> keys) {
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String key : keys) {
+                // SAMPLES 0 统计哈希里的全部字段，而不是抽样估算
+                connection.execute("MEMORY", raw("USAGE"), raw(key), raw("SAMPLES"), raw("0"));
+            }
+            return null;
+        });
+        long total = 0;
+        for (Object result : results) {
+            if (result instanceof Number) {
+                total += ((Number) result).longValue();
+            }
+        }
+        return total;
+    }
+
+    private static byte[] raw(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,104 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CacheClient的监控指标，按key前缀和缓存策略分别统计
+ * cache.requests：请求次数，result标签区分本地命中、命中、过期命中、空值命中、未命中、布隆过滤器拦截、查库失败返回影子副本
+ * cache.lock.contention：获取重建锁失败的次数
+ * cache.rebuild：查库重建的耗时分布
+ * cache.rebuild.tasks：重建任务的提交结果，outcome标签区分提交、去重、队列满被拒绝、执行失败
+ * cache.rebuild.queue：重建线程池排队的任务数
+ * cache.circuit.open：熔断器是否打开，1为打开
+ */
+public class CacheMetrics {
+    public static final String PASS_THROUGH = "pass_through";
+    public static final String MUTEX = "mutex";
+    public static final String LOGICAL_EXPIRE = "logical_expire";
+    public static final String BATCH = "batch";
+
+    public static final String LOCAL_HIT = "local_hit";
+    public static final String HIT = "hit";
+    public static final String STALE_HIT = "stale_hit";
+    public static final String NULL_HIT = "null_hit";
+    public static final String MISS = "miss";
+    public static final String BLOOM_REJECT = "bloom_reject";
+    public static final String STALE_ON_ERROR = "stale_on_error";
+
+    public static final String SUBMITTED = "submitted";
+    public static final String DEDUPLICATED = "deduplicated";
+    public static final String REJECTED = "rejected";
+    public static final String FAILED = "failed";
+
+    private final MeterRegistry registry;
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+
+    public CacheMetrics(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    public void request(String keyPrefix, String strategy, String result) {
+        request(keyPrefix, strategy, result, 1);
+    }
+
+    public void request(String keyPrefix, String strategy, String result, long count) {
+        if (count <= 0) {
+            return;
+        }
+        counters.computeIfAbsent("requests|" + keyPrefix + "|" + strategy + "|" + result,
+                k -> Counter.builder("cache.requests")
+                        .tag("prefix", keyPrefix)
+                        .tag("strategy", strategy)
+                        .tag("result", result)
+                        .register(registry))
+                .increment(count);
+    }
+
+    public void lockContention(String keyPrefix, String strategy) {
+        counters.computeIfAbsent("contention|" + keyPrefix + "|" + strategy,
+                k -> Counter.builder("cache.lock.contention")
+                        .tag("prefix", keyPrefix)
+                        .tag("strategy", strategy)
+                        .register(registry))
+                .increment();
+    }
+
+    public void rebuildTask(String outcome) {
+        counters.computeIfAbsent("tasks|" + outcome,
+                k -> Counter.builder("cache.rebuild.tasks")
+                        .tag("outcome", outcome)
+                        .register(registry))
+                .increment();
+    }
+
+    public void rebuild(String keyPrefix, String strategy, long nanos) {
+        timers.computeIfAbsent(keyPrefix + "|" + strategy,
+                k -> Timer.builder("cache.rebuild")
+                        .tag("prefix", keyPrefix)
+                        .tag("strategy", strategy)
+                        .publishPercentileHistogram()
+                        .register(registry))
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void monitorCircuitBreaker(String keyPrefix, CircuitBreaker circuitBreaker) {
+        registry.gauge("cache.circuit.open", Tags.of(Tag.of("prefix", keyPrefix)), circuitBreaker,
+                b -> b.isOpen() ? 1 : 0);
+    }
+
+    public void monitorExecutor(String name, ThreadPoolExecutor executor) {
+        Tags tags = Tags.of(Tag.of("executor", name));
+        registry.gauge("cache.rebuild.queue", tags, executor, e -> e.getQueue().size());
+        registry.gauge("cache.rebuild.active", tags, executor, ThreadPoolExecutor::getActiveCount);
+    }
+}
@@ -0,0 +1,82 @@
+package com.hmdp.utils;
+
+import lombok.Data;
+import lombok.experimental.Accessors;
+
+/**
+ * CacheClient 按key前缀生效的缓存配置
+ */
+@Data
+@Accessors(chain = true)
+public class CacheOptions {
+    /**
+     * 是否开启本地一级缓存（JVM内）
+     */
+    private boolean localCacheEnabled;
+    /**
+     * 本地缓存最大条目数
+     */
+    private long localMaxSize = 1000L;
+    /**
+     * 本地缓存有效期，单位秒
+     */
+    private long localTtlSeconds = 10L;
+    /**
+     * 逻辑过期是否开启XFetch提前刷新
+     */
+    private boolean earlyRefreshEnabled;
+    /**
+     * 提前刷新系数，越大越早刷新，1.0为XFetch论文中的默认值
+     */
+    private double earlyRefreshBeta = 1.0;
+    /**
+     * 是否用布隆过滤器拦截不存在的id，防止缓存穿透
+     */
+    private boolean bloomFilterEnabled;
+    /**
+     * 布隆过滤器预期元素数量
+     */
+    private long bloomExpectedInsertions = 1000000L;
+    /**
+     * 布隆过滤器误判率
+     */
+    private double bloomFpp = 0.01;
+    /**
+     * 写缓存时使用的编码器，读取时根据数据头部自动识别
+     */
+    private CacheCodec codec = CacheCodecs.JSON;
+    /**
+     * 过期时间随机增加的比例，0.1表示在原有效期上随机增加0~10%，避免同一批写入的key同时过期
+     */
+    private double ttlJitterRatio;
+    /**
+     * 是否开启stale-if-error：写缓存时额外保存一份有效期更长的影子副本，查库失败或超时时返回它
+     */
+    private boolean staleIfErrorEnabled;
+    /**
+     * 影子副本有效期，单位秒
+     */
+    private long staleTtlSeconds = 3600L;
+    /**
+     * 是否开启熔断，数据库连续出错时一段时间内不再查库重建
+     */
+    private boolean circuitBreakerEnabled;
+    /**
+     * 连续失败多少次打开熔断
+     */
+    private int circuitFailureThreshold = 5;
+    /**
+     * 熔断打开多久后放一个请求去试探，单位秒
+     */
+    private long circuitOpenSeconds = 10L;
+    /**
+     * 分桶存储时每个桶的条目数，0表示不分桶，每条数据一个字符串key
+     * 开启后数据按id写入哈希桶 前缀 + b:{id/bucketSize}，小哈希可以用listpack紧凑编码，
+     * 只适用于id为数字、使用逻辑过期的数据，桶的大小不要超过Redis的hash-max-listpack-entries
+     */
+    private long bucketSize;
+
+    public static CacheOptions defaults() {
+        return new CacheOptions();
+    }
+}
@@ -0,0 +1,77 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 缓存重建调度器
+ * 1. 线程数固定、队列有界，大量key同时过期时多出来的重建直接丢弃（调用方继续返回旧值），
+ *    避免重建任务无限堆积、占满数据库连接
+ * 2. 同一个key在队列中或执行中时不会重复提交
+ * 3. 重建任务抛出的异常会记录日志和指标，不会被线程池吞掉
+ */
+@Slf4j
+public class CacheRebuildScheduler {
+    private final ThreadPoolExecutor executor;
+    private final Set<String> pendingKeys = ConcurrentHashMap.newKeySet();
+    private final CacheMetrics metrics;
+
+    public CacheRebuildScheduler(int threads, int queueCapacity, CacheMetrics metrics) {
+        AtomicInteger index = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                r -> {
+                    Thread thread = new Thread(r, "cache-rebuild-" + index.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+        this.metrics = metrics;
+        metrics.monitorExecutor("cache-rebuild", executor);
+    }
+
+    /**
+     * 这个key是否已经在等待或正在重建
+     */
+    public boolean isPending(String key) {
+        return pendingKeys.contains(key);
+    }
+
+    /**
+     * 提交重建任务
+     * @return 是否提交成功，重复提交或队列已满时返回false
+     */
+    public boolean submit(String key, Runnable task) {
+        if (!pendingKeys.add(key)) {
+            metrics.rebuildTask(CacheMetrics.DEDUPLICATED);
+            return false;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    metrics.rebuildTask(CacheMetrics.FAILED);
+                    log.error("缓存重建失败，key={}", key, e);
+                } finally {
+                    pendingKeys.remove(key);
+                }
+            });
+            metrics.rebuildTask(CacheMetrics.SUBMITTED);
+            return true;
+        } catch (RejectedExecutionException e) {
+            // 队列已满，放弃本次重建，由后续请求再次触发
+            pendingKeys.remove(key);
+            metrics.rebuildTask(CacheMetrics.REJECTED);
+            log.warn("缓存重建队列已满，放弃重建，key={}", key);
+            return false;
+        }
+    }
+}
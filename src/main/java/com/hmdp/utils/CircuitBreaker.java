@@ -0,0 +1,71 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 简单的熔断器：连续失败达到阈值后打开，打开期间不再访问数据库；
+ * 打开一段时间后进入半开状态，只放一个请求去试探，成功则关闭，失败则重新打开
+ */
+@Slf4j
+public class CircuitBreaker {
+    private final String name;
+    private final int failureThreshold;
+    private final long openMillis;
+
+    private final AtomicInteger failures = new AtomicInteger();
+    private final AtomicBoolean probing = new AtomicBoolean();
+    /**
+     * 熔断打开的截止时间，为0表示关闭
+     */
+    private volatile long openUntil;
+
+    public CircuitBreaker(String name, int failureThreshold, long openMillis) {
+        this.name = name;
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * 是否允许本次调用，半开状态下只有一个线程能拿到试探的机会
+     */
+    public boolean allowRequest() {
+        long until = openUntil;
+        if (until == 0) {
+            return true;
+        }
+        if (System.currentTimeMillis() < until) {
+            return false;
+        }
+        return probing.compareAndSet(false, true);
+    }
+
+    /**
+     * 是否处于打开状态（还没到试探时间）
+     */
+    public boolean isOpen() {
+        long until = openUntil;
+        return until != 0 && System.currentTimeMillis() < until;
+    }
+
+    public void onSuccess() {
+        failures.set(0);
+        if (openUntil != 0) {
+            openUntil = 0;
+            log.info("熔断器 {} 已关闭", name);
+        }
+        probing.set(false);
+    }
+
+    public void onFailure() {
+        if (failures.incrementAndGet() >= failureThreshold || probing.get()) {
+            if (openUntil == 0) {
+                log.warn("熔断器 {} 已打开，连续失败{}次", name, failures.get());
+            }
+            openUntil = System.currentTimeMillis() + openMillis;
+        }
+        probing.set(false);
+    }
+}
@@ -0,0 +1,33 @@
+package com.hmdp.utils;
+
+import cn.hutool.crypto.digest.DigestUtil;
+
+import java.util.Collection;
+import java.util.function.Function;
+
+/**
+ * 条件GET使用的ETag
+ * 缓存里的数据直接用写入缓存时算好的内容摘要（CacheClient.versionOf），
+ * 不在缓存里的数据用每个元素的id、更新时间和字段hash拼起来取摘要，都不需要序列化响应体
+ */
+public class ETagUtils {
+    /**
+     * 根据版本号生成弱ETag
+     * @return 形如 W/"40位十六进制摘要" 的ETag
+     */
+    public static String weak(String version) {
+        return "W/\"" + version + "\"";
+    }
+
+    /**
+     * 计算一组实体的版本号
+     * @param key 每个元素参与计算的字段，例如 id:更新时间:hashCode
+     */
+    public static <T> String version(Collection<T> items, Function<T, Object> key) {
+        StringBuilder sb = new StringBuilder();
+        for (T item : items) {
+            sb.append(key.apply(item)).append('|');
+        }
+        return DigestUtil.sha1Hex(sb.toString());
+    }
+}
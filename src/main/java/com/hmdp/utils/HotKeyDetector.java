@@ -0,0 +1,112 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * 热点key探测：对访问做抽样，用Count-Min Sketch估算每个key在一个时间窗口内的访问次数，
+ * 超过阈值的key会被标记为热点一段时间，窗口结束时计数减半，让旧的热度逐渐衰减
+ */
+public class HotKeyDetector {
+    private static final int DEPTH = 4;
+    private static final int WIDTH = 1 << 16;
+
+    private final AtomicIntegerArray counters = new AtomicIntegerArray(DEPTH * WIDTH);
+    private final int sampleRate;
+    private final long threshold;
+    private final long hotMillis;
+    /**
+     * 热点key -> 估算的访问次数和过期时间
+     */
+    private final Map<String, HotKey> hotKeys = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService decayExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "hot-key-decay");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param sampleRate 每多少次访问抽样一次
+     * @param threshold 一个窗口内访问多少次算热点
+     * @param windowMillis 窗口长度
+     * @param hotMillis 被标记为热点后保持多久
+     */
+    public HotKeyDetector(int sampleRate, long threshold, long windowMillis, long hotMillis) {
+        this.sampleRate = Math.max(1, sampleRate);
+        this.threshold = threshold;
+        this.hotMillis = hotMillis;
+        decayExecutor.scheduleAtFixedRate(this::decay, windowMillis, windowMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 记录一次访问
+     * @return 这个key当前是否是热点
+     */
+    public boolean record(String key) {
+        if (sampleRate > 1 && ThreadLocalRandom.current().nextInt(sampleRate) != 0) {
+            return isHot(key);
+        }
+        long[] hash = MurmurHash.hash128(key);
+        int min = Integer.MAX_VALUE;
+        for (int i = 0; i < DEPTH; i++) {
+            int index = i * WIDTH + (int) (((hash[0] + i * hash[1]) & Long.MAX_VALUE) % WIDTH);
+            min = Math.min(min, counters.incrementAndGet(index));
+        }
+        long estimate = (long) min * sampleRate;
+        if (estimate >= threshold) {
+            hotKeys.put(key, new HotKey(estimate, System.currentTimeMillis() + hotMillis));
+            return true;
+        }
+        return isHot(key);
+    }
+
+    public boolean isHot(String key) {
+        HotKey hotKey = hotKeys.get(key);
+        return hotKey != null && hotKey.expireAt > System.currentTimeMillis();
+    }
+
+    /**
+     * 当前的热点key及其估算访问次数
+     */
+    public Map<String, Long> getHotKeys() {
+        long now = System.currentTimeMillis();
+        Map<String, Long> result = new TreeMap<>();
+        hotKeys.forEach((key, hotKey) -> {
+            if (hotKey.expireAt > now) {
+                result.put(key, hotKey.estimate);
+            }
+        });
+        return Collections.unmodifiableMap(result);
+    }
+
+    private void decay() {
+        for (int i = 0; i < counters.length(); i++) {
+            int value = counters.get(i);
+            if (value != 0) {
+                counters.set(i, value >>> 1);
+            }
+        }
+        long now = System.currentTimeMillis();
+        hotKeys.values().removeIf(hotKey -> hotKey.expireAt <= now);
+    }
+
+    private static class HotKey {
+        private final long estimate;
+        private final long expireAt;
+
+        private HotKey(long estimate, long expireAt) {
+            this.estimate = estimate;
+            this.expireAt = expireAt;
+        }
+    }
+}
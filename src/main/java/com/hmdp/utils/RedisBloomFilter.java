@@ -0,0 +1,150 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 布隆过滤器：位图保存在Redis中，本地保存一份镜像，判断时不走网络
+ * Redis位图的第0位是第0个字节的最高位，本地镜像保持同样的布局，所以可以直接用GET的结果
+ * 位数和哈希函数个数写在key里，形如 bloom:cache:shop:位数:哈希函数个数，调整预期元素数量或误判率之后
+ * 读不到旧的位图，按新的参数重建，不会用新的偏移量去查旧的位图
+ */
+@Slf4j
+public class RedisBloomFilter {
+    private final StringRedisTemplate stringRedisTemplate;
+    private final String key;
+    private final long numBits;
+    private final int numHashes;
+    /**
+     * 本地位图镜像，为null时表示还没有加载，此时一律认为可能存在
+     */
+    private volatile byte[] bits;
+
+    public RedisBloomFilter(StringRedisTemplate stringRedisTemplate, String key, long expectedInsertions, double fpp) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        // 按照预期元素数量和误判率计算位数和哈希函数个数
+        long m = (long) (-expectedInsertions * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        // 按字节对齐，方便和Redis位图互相转换
+        this.numBits = Math.max(8, (m + 7) / 8 * 8);
+        this.numHashes = Math.max(1, (int) Math.round((double) numBits / expectedInsertions * Math.log(2)));
+        this.key = key + (key.endsWith(":") ? "" : ":") + numBits + ":" + numHashes;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public boolean isReady() {
+        return bits != null;
+    }
+
+    /**
+     * 判断id是否可能存在，返回false时一定不存在
+     */
+    public boolean mightContain(Object id) {
+        byte[] current = bits;
+        if (current == null) {
+            return true;
+        }
+        for (long offset : offsets(id)) {
+            if ((current[(int) (offset >>> 3)] & (0x80 >>> (offset & 7))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 添加id，同时写本地镜像和Redis位图
+     */
+    public void put(Object id) {
+        long[] offsets = offsets(id);
+        putLocal(offsets);
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (long offset : offsets) {
+                connection.setBit(rawKey, offset, true);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 只写本地镜像，用于收到其他实例的新增广播
+     */
+    public void putLocal(Object id) {
+        putLocal(offsets(id));
+    }
+
+    private synchronized void putLocal(long[] offsets) {
+        byte[] current = bits;
+        if (current == null) {
+            return;
+        }
+        for (long offset : offsets) {
+            current[(int) (offset >>> 3)] |= (0x80 >>> (offset & 7));
+        }
+    }
+
+    /**
+     * 从Redis加载位图到本地
+     * @return Redis中没有这组参数的位图时返回false
+     */
+    public boolean reload() {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        byte[] remote = stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(rawKey));
+        if (remote == null || remote.length > numBits / 8) {
+            return false;
+        }
+        // Redis只返回到最高的那个1所在的字节，需要补齐
+        byte[] loaded = new byte[(int) (numBits / 8)];
+        System.arraycopy(remote, 0, loaded, 0, Math.min(remote.length, loaded.length));
+        synchronized (this) {
+            bits = loaded;
+        }
+        return true;
+    }
+
+    /**
+     * 在线重建：先在本地算好完整的位图，写到临时key后再RENAME替换，重建期间不影响判断
+     */
+    public void rebuild(Iterable<?> ids) {
+        byte[] rebuilt = new byte[(int) (numBits / 8)];
+        long count = 0;
+        for (Object id : ids) {
+            for (long offset : offsets(id)) {
+                rebuilt[(int) (offset >>> 3)] |= (0x80 >>> (offset & 7));
+            }
+            count++;
+        }
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        byte[] tmpKey = (key + ":tmp").getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            connection.set(tmpKey, rebuilt);
+            connection.rename(tmpKey, rawKey);
+            return null;
+        });
+        synchronized (this) {
+            bits = rebuilt;
+        }
+        log.info("布隆过滤器 {} 重建完成，共{}个元素，{}位，{}个哈希函数", key, count, numBits, numHashes);
+    }
+
+    /**
+     * 双重哈希：用murmur128的两个64位结果模拟k个哈希函数
+     */
+    private long[] offsets(Object id) {
+        long[] hash = MurmurHash.hash128(String.valueOf(id));
+        long[] offsets = new long[numHashes];
+        long combined = hash[0];
+        for (int i = 0; i < numHashes; i++) {
+            offsets[i] = (combined & Long.MAX_VALUE) % numBits;
+            combined += hash[1];
+        }
+        return offsets;
+    }
+}
@@ -10,15 +10,77 @@ public class RedisConstants {
 
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
+    public static final Long CACHE_SHOP_LOGICAL_TTL = 10L;
+
+    public static final double CACHE_SHOP_TTL_JITTER = 0.1;
+    public static final Long CACHE_SHOP_STALE_TTL = 3600L;
+
+    public static final Long CACHE_SHOP_LOCAL_TTL = 10L;
+    public static final Long CACHE_SHOP_LOCAL_MAX_SIZE = 10000L;
+
+    public static final Long CACHE_USER_TTL = 30L;
+    public static final String CACHE_USER_KEY = "cache:user:";
 
     public static final String CACHE_SHOP_TYPE_KEY = "cache:shop:type:";
+    public static final String CACHE_SHOP_TYPE_SNAPSHOT_KEY = CACHE_SHOP_TYPE_KEY + "snapshot";
+    public static final String CACHE_SHOP_TYPE_VERSION_KEY = CACHE_SHOP_TYPE_KEY + "version";
+    public static final Long CACHE_SHOP_TYPE_TTL = 24L;
+    public static final long CACHE_SHOP_TYPE_CHECK_MILLIS = 1000L;
+
+    public static final String CACHE_STALE_KEY = "stale:";
+    public static final String CACHE_BUCKET_KEY = "b:";
+
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+
+    public static final int HOT_KEY_SAMPLE_RATE = 10;
+    public static final long HOT_KEY_THRESHOLD = 1000L;
+    public static final long HOT_KEY_WINDOW_MILLIS = 1000L;
+    public static final long HOT_KEY_LOCAL_TTL_MILLIS = 3000L;
+    public static final long HOT_KEY_LOCAL_MAX_SIZE = 1000L;
+
+    public static final String CACHE_BLOOM_KEY = "bloom:";
+    public static final String CACHE_BLOOM_CHANNEL = "cache:bloom";
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
+    public static final String CACHE_LOCK_KEY = "lock:";
+    public static final int CACHE_REBUILD_THREADS = 4;
+    public static final int CACHE_REBUILD_QUEUE_CAPACITY = 1000;
+    public static final long MUTEX_RETRY_MIN_MILLIS = 10L;
+    public static final long MUTEX_RETRY_MAX_MILLIS = 200L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_SHARDS_KEY = "seckill:shards:";
+    public static final String SECKILL_META_KEY = "seckill:meta:";
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:soldout";
+    public static final long SECKILL_SOLD_OUT_TTL_MILLIS = 10000L;
+    public static final String SECKILL_ORDER_STREAM = "stream.orders";
+    public static final String SECKILL_ORDER_GROUP = "g1";
+    public static final String SECKILL_ORDER_DLQ_STREAM = "stream.orders.dlq";
+    public static final String SECKILL_STREAMS_KEY = "seckill:streams";
+    public static final long SECKILL_STREAMS_REFRESH_MILLIS = 1000L;
+    public static final long SECKILL_STREAMS_RETIRE_MILLIS = 60000L;
+    public static final long SECKILL_STREAM_RETIRE_GRACE_MILLIS = 60000L;
+    public static final long SECKILL_STREAM_RETIRED_TTL_HOURS = 24L;
+    public static final long ORDER_POLL_MILLIS = 100L;
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
+    public static final String SHOP_GEO_READY_KEY = "shop:geo:ready";
+    public static final String SHOP_GEO_CHANGED_KEY = "shop:geo:changed";
+    public static final String LOCK_SHOP_GEO_KEY = "lock:shop:geo";
+    public static final double SHOP_NEARBY_RADIUS_METERS = 5000;
+    public static final int SHOP_NEARBY_MAX_RESULTS = 1000;
+    /**
+     * Redis GEO能保存的纬度范围，超出范围的坐标GEOADD也会拒绝
+     */
+    public static final double SHOP_GEO_MAX_LATITUDE = 85.05112878;
+    public static final String SHOP_TYPE_INDEX_KEY = "shop:type:";
+    public static final String SHOP_TYPE_INDEX_READY_KEY = "shop:type:ready";
+    public static final String SHOP_TYPE_INDEX_CHANGED_KEY = "shop:type:changed";
+    public static final String LOCK_SHOP_TYPE_INDEX_KEY = "lock:shop:type";
+    public static final long SHOP_INDEX_READY_CHECK_MILLIS = 1000L;
+    public static final String SHOP_CHANGED_CHANNEL = "shop:changed";
     public static final String USER_SIGN_KEY = "sign:";
 }
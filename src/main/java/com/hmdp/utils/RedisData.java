@@ -8,4 +8,12 @@ import java.time.LocalDateTime;
 public class RedisData {
     private LocalDateTime expireTime;
     private Object data;
+    /**
+     * 最近一次缓存重建的耗时，单位毫秒
+     */
+    private Long rebuildTime;
+    /**
+     * 数据内容的SHA-1摘要，写入缓存时计算一次，用作条件GET的ETag
+     */
+    private String version;
 }
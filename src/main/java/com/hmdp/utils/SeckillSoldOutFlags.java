@@ -0,0 +1,98 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_TTL_MILLIS;
+
+/**
+ * 秒杀券的本地售罄标记，售罄之后的请求直接在本机拒绝，不再访问Redis
+ * 1. 秒杀脚本返回库存不足时标记，并通过 seckill:soldout 频道广播给所有实例
+ * 2. 补货之后广播清除标记
+ * 3. 标记带有效期，广播丢失或者和补货同时发生时，最多在有效期内误拒，过期后重新由脚本判断
+ * 消息格式为 soldout|优惠券id 或者 restock|优惠券id
+ */
+@Slf4j
+@Component
+public class SeckillSoldOutFlags {
+    private static final String SOLD_OUT = "soldout";
+    private static final String RESTOCK = "restock";
+
+    /**
+     * 优惠券id -> 标记的过期时间
+     */
+    private final Map<Long, Long> soldOut = new ConcurrentHashMap<>();
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer listenerContainer;
+
+    @PostConstruct
+    private void init() {
+        listenerContainer.addMessageListener((message, pattern) ->
+                onMessage(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+    }
+
+    public boolean isSoldOut(Long voucherId) {
+        Long expireAt = soldOut.get(voucherId);
+        if (expireAt == null) {
+            return false;
+        }
+        if (expireAt < System.currentTimeMillis()) {
+            soldOut.remove(voucherId, expireAt);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 本机已经标记过的不再重复广播
+     */
+    public void markSoldOut(Long voucherId) {
+        if (isSoldOut(voucherId)) {
+            return;
+        }
+        soldOut.put(voucherId, System.currentTimeMillis() + SECKILL_SOLD_OUT_TTL_MILLIS);
+        publish(SOLD_OUT, voucherId);
+    }
+
+    public void clear(Long voucherId) {
+        soldOut.remove(voucherId);
+        publish(RESTOCK, voucherId);
+    }
+
+    private void publish(String type, Long voucherId) {
+        try {
+            stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, type + "|" + voucherId);
+        } catch (Exception e) {
+            // 广播失败只影响其他实例多访问几次Redis
+            log.warn("广播秒杀券售罄状态失败，voucherId={}", voucherId, e);
+        }
+    }
+
+    private void onMessage(String message) {
+        int index = message.indexOf('|');
+        if (index < 0) {
+            return;
+        }
+        Long voucherId = Long.valueOf(message.substring(index + 1));
+        if (SOLD_OUT.equals(message.substring(0, index))) {
+            soldOut.putIfAbsent(voucherId, System.currentTimeMillis() + SECKILL_SOLD_OUT_TTL_MILLIS);
+        } else {
+            soldOut.remove(voucherId);
+        }
+    }
+}
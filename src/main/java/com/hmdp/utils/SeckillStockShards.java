@@ -0,0 +1,297 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.SeckillVoucher;
+import org.springframework.core.NestedExceptionUtils;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.DataType;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_META_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_DLQ_STREAM;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_GROUP;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STREAM;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_SHARDS_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STREAMS_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STREAM_RETIRED_TTL_HOURS;
+import static com.hmdp.utils.RedisConstants.SECKILL_STREAM_RETIRE_GRACE_MILLIS;
+
+/**
+ * 秒杀库存分片：一张优惠券的库存拆成N个子计数器，用户按userId哈希固定到一个分片
+ * 1. 分片数为1时key为 seckill:stock:{voucherId}、seckill:order:{voucherId}
+ * 2. 分片数大于1时第i个分片为 seckill:stock:{voucherId:i}、seckill:order:{voucherId:i}
+ * 3. 每个分片有自己的订单消息队列 stream.orders:{voucherId:i}，和库存、下单用户、秒杀信息带相同的hash tag，
+ *    集群模式下落在同一个slot，秒杀脚本只操作一个分片的key；所有队列登记在 seckill:streams 里供消费者发现
+ * 4. 分片数写在 seckill:shards:{voucherId}，请求路径上读一次之后缓存在本地
+ * 5. 每个分片带一份秒杀时间和限购数量 seckill:meta:{voucherId:i}，脚本里校验，不用查数据库
+ * 6. 下单用户集合是哈希，字段为userId，值为已经购买的数量
+ * 7. 秒杀结束并且消息全部处理完的队列从 seckill:streams 移除，消费者不再轮询
+ */
+@Slf4j
+@Component
+public class SeckillStockShards {
+    private final Map<Long, Integer> shardCounts = new ConcurrentHashMap<>();
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 把库存平均拆到各个分片，除不尽的余数分给前面的分片，每个分片写一份秒杀时间和限购数量
+     */
+    public void init(SeckillVoucher seckillVoucher, int shards) {
+        Long voucherId = seckillVoucher.getVoucherId();
+        int stock = seckillVoucher.getStock();
+        int n = Math.max(1, shards);
+        Map<String, String> meta = meta(seckillVoucher);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (int i = 0; i < n; i++) {
+                conn.set(stockKey(voucherId, i, n), String.valueOf(stock / n + (i < stock % n ? 1 : 0)));
+                conn.hMSet(metaKey(voucherId, i, n), meta);
+            }
+            conn.set(SECKILL_SHARDS_KEY + voucherId, String.valueOf(n));
+            return null;
+        });
+        shardCounts.put(voucherId, n);
+        registerStreams(voucherId, n);
+    }
+
+    /**
+     * 创建每个分片的订单消息队列和消费者组，登记到 seckill:streams，已经存在的忽略
+     */
+    public void registerStreams(Long voucherId, int shards) {
+        for (int i = 0; i < shards; i++) {
+            String streamKey = streamKey(voucherId, i, shards);
+            createGroup(streamKey);
+            // 秒杀时间延长后重新登记，取消移除时设置的过期时间
+            stringRedisTemplate.persist(streamKey);
+            stringRedisTemplate.opsForSet().add(SECKILL_STREAMS_KEY, streamKey);
+        }
+    }
+
+    /**
+     * 升级前所有订单都写在不分片的 stream.orders 里，还有未读或未ACK的消息时登记进来，
+     * 和分片队列一样消费、回收，处理完后由 retireDrainedStreams 移除
+     */
+    public void registerLegacyStream() {
+        if (stringRedisTemplate.type(SECKILL_ORDER_STREAM) != DataType.STREAM) {
+            return;
+        }
+        createGroup(SECKILL_ORDER_STREAM);
+        if (!isDrained(SECKILL_ORDER_STREAM)) {
+            stringRedisTemplate.opsForSet().add(SECKILL_STREAMS_KEY, SECKILL_ORDER_STREAM);
+            log.info("旧的订单消息队列还有未处理的消息，登记后继续消费，queue={}", SECKILL_ORDER_STREAM);
+        }
+    }
+
+    /**
+     * 移除已经结束的队列：秒杀结束超过宽限时间（或秒杀信息已经不存在，脚本不会再写入），
+     * 并且所有消息都已投递、pending-list为空，从 seckill:streams 移除，队列本身过期后删除，
+     * 其他实例刷新队列列表之前还能读到空队列
+     * @return 移除的队列数
+     */
+    public int retireDrainedStreams() {
+        int retired = 0;
+        long now = System.currentTimeMillis();
+        for (String streamKey : streams()) {
+            try {
+                if (!isEnded(streamKey, now) || !isDrained(streamKey)) {
+                    continue;
+                }
+                stringRedisTemplate.opsForSet().remove(SECKILL_STREAMS_KEY, streamKey);
+                stringRedisTemplate.expire(streamKey, SECKILL_STREAM_RETIRED_TTL_HOURS, TimeUnit.HOURS);
+                retired++;
+                log.info("订单消息队列已处理完，不再消费，queue={}", streamKey);
+            } catch (Exception e) {
+                log.error("检查订单消息队列是否处理完失败，queue={}", streamKey, e);
+            }
+        }
+        return retired;
+    }
+
+    /**
+     * 队列是否不会再有新消息：旧的不分片队列已经没有写入，分片队列看同一个hash tag的秒杀信息
+     */
+    private boolean isEnded(String streamKey, long now) {
+        int tag = streamKey.indexOf('{');
+        if (tag < 0) {
+            return true;
+        }
+        Object end = stringRedisTemplate.opsForHash().get(SECKILL_META_KEY + streamKey.substring(tag), "end");
+        return end == null || now > Long.parseLong(end.toString()) + SECKILL_STREAM_RETIRE_GRACE_MILLIS;
+    }
+
+    /**
+     * 消费者组已经读到最后一条消息，并且没有未ACK的消息
+     */
+    private boolean isDrained(String streamKey) {
+        StreamInfo.XInfoStream info = stringRedisTemplate.opsForStream().info(streamKey);
+        StreamInfo.XInfoGroups groups = stringRedisTemplate.opsForStream().groups(streamKey);
+        return groups.stream()
+                .filter(group -> SECKILL_ORDER_GROUP.equals(group.groupName()))
+                .anyMatch(group -> group.pendingCount() == 0 && info.lastGeneratedId().equals(group.lastDeliveredId()));
+    }
+
+    /**
+     * 所有登记过的订单消息队列
+     */
+    public List<String> streams() {
+        Set<String> members = stringRedisTemplate.opsForSet().members(SECKILL_STREAMS_KEY);
+        if (members == null) {
+            return Collections.emptyList();
+        }
+        List<String> streams = new ArrayList<>(members);
+        Collections.sort(streams);
+        return streams;
+    }
+
+    /**
+     * XGROUP CREATE ... MKSTREAM，组已经存在时Redis返回BUSYGROUP，忽略即可
+     */
+    private void createGroup(String streamKey) {
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection ->
+                    ((StringRedisConnection) connection).xGroupCreate(streamKey, ReadOffset.from("0"), SECKILL_ORDER_GROUP, true));
+        } catch (Exception e) {
+            String message = NestedExceptionUtils.getMostSpecificCause(e).getMessage();
+            if (message == null || !message.contains("BUSYGROUP")) {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Redis重启后恢复：秒杀时间和限购数量缺失时重新写入；
+     * 库存也整个丢失时，用数据库里的库存重新初始化，下单用户集合无法恢复，由数据库的唯一约束兜底
+     */
+    public void restore(SeckillVoucher seckillVoucher, int shards) {
+        Long voucherId = seckillVoucher.getVoucherId();
+        if (!exists(SECKILL_SHARDS_KEY + voucherId) && !exists(stockKey(voucherId, 0, 1))) {
+            init(seckillVoucher, shards);
+            return;
+        }
+        int n = shardsOf(voucherId);
+        registerStreams(voucherId, n);
+        if (exists(metaKey(voucherId, 0, n))) {
+            return;
+        }
+        Map<String, String> meta = meta(seckillVoucher);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (int i = 0; i < n; i++) {
+                conn.hMSet(metaKey(voucherId, i, n), meta);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 补货，增加的库存按同样的方式分到各个分片
+     */
+    public void restock(Long voucherId, int count) {
+        int n = shardsOf(voucherId);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (int i = 0; i < n; i++) {
+                long delta = count / n + (i < count % n ? 1 : 0);
+                if (delta > 0) {
+                    conn.incrBy(stockKey(voucherId, i, n), delta);
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 优惠券的分片数，Redis里没有记录的当作不分片，不缓存，优惠券创建之后能读到
+     */
+    public int shardsOf(Long voucherId) {
+        Integer cached = shardCounts.get(voucherId);
+        if (cached != null) {
+            return cached;
+        }
+        String value = stringRedisTemplate.opsForValue().get(SECKILL_SHARDS_KEY + voucherId);
+        if (value == null) {
+            return 1;
+        }
+        int n = Math.max(1, Integer.parseInt(value));
+        shardCounts.put(voucherId, n);
+        return n;
+    }
+
+    /**
+     * 用户所属的分片
+     */
+    public static int shardOf(Long userId, int shards) {
+        return Math.floorMod(userId.hashCode(), shards);
+    }
+
+    public static String stockKey(Long voucherId, int shard, int shards) {
+        return shardKey(SECKILL_STOCK_KEY, voucherId, shard, shards);
+    }
+
+    public static String orderKey(Long voucherId, int shard, int shards) {
+        return shardKey(SECKILL_ORDER_KEY, voucherId, shard, shards);
+    }
+
+    public static String metaKey(Long voucherId, int shard, int shards) {
+        return shardKey(SECKILL_META_KEY, voucherId, shard, shards);
+    }
+
+    public static String streamKey(Long voucherId, int shard, int shards) {
+        return shardKey(SECKILL_ORDER_STREAM + ":", voucherId, shard, shards);
+    }
+
+    /**
+     * 订单消息队列对应的死信队列，和原队列在同一个slot
+     */
+    public static String deadLetterKey(String streamKey) {
+        int tag = streamKey.indexOf('{');
+        return SECKILL_ORDER_DLQ_STREAM + ":" + (tag < 0 ? "{" + streamKey + "}" : streamKey.substring(tag));
+    }
+
+    /**
+     * 同一分片的key都带相同的hash tag
+     */
+    private static String shardKey(String prefix, Long voucherId, int shard, int shards) {
+        return shards <= 1 ? prefix + "{" + voucherId + "}" : prefix + "{" + voucherId + ":" + shard + "}";
+    }
+
+    /**
+     * 开始和结束时间用毫秒时间戳，脚本里和Redis的TIME比较
+     */
+    private static Map<String, String> meta(SeckillVoucher seckillVoucher) {
+        Map<String, String> meta = new HashMap<>(4);
+        meta.put("begin", String.valueOf(toMillis(seckillVoucher.getBeginTime())));
+        meta.put("end", String.valueOf(toMillis(seckillVoucher.getEndTime())));
+        Integer limit = seckillVoucher.getLimitPerUser();
+        meta.put("limit", String.valueOf(limit == null || limit < 1 ? 1 : limit));
+        return meta;
+    }
+
+    private static long toMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private boolean exists(String key) {
+        return Boolean.TRUE.equals(stringRedisTemplate.hasKey(key));
+    }
+}
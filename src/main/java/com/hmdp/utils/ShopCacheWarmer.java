@@ -0,0 +1,184 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.entity.Shop;
+import com.hmdp.service.IShopService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_LOGICAL_TTL;
+
+/**
+ * 商铺缓存预热：按id分页读取tb_shop（或者只读配置的热点id），
+ * 多个线程并行查库，每页用一次pipeline写入逻辑过期的缓存
+ * 预热期间健康检查为OUT_OF_SERVICE，启动时预热在ApplicationRunner中同步执行，
+ * 完成之前应用不会进入ready状态
+ */
+@Slf4j
+@Component
+public class ShopCacheWarmer implements HealthIndicator {
+    private static final String IDLE = "IDLE";
+    private static final String RUNNING = "RUNNING";
+    private static final String DONE = "DONE";
+    private static final String FAILED = "FAILED";
+
+    @Resource
+    private IShopService shopService;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Value("${hmdp.cache.warm-up.workers:4}")
+    private int workers;
+
+    /**
+     * 热点id，逗号分隔，为空时预热全表
+     */
+    @Value("${hmdp.cache.warm-up.hot-ids:}")
+    private String hotIds;
+
+    private volatile String state = IDLE;
+    private final AtomicLong warmed = new AtomicLong();
+    private volatile long startTime;
+    private volatile long endTime;
+
+    /**
+     * 同步预热，返回预热的商铺数量
+     */
+    public synchronized long warmUp() {
+        state = RUNNING;
+        warmed.set(0);
+        startTime = System.currentTimeMillis();
+        endTime = 0;
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        // 限制同时在途的页数，读id的速度比写缓存快很多，避免把所有id都堆在内存里
+        Semaphore inFlight = new Semaphore(workers * 2);
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            for (List<Long> page : pages()) {
+                inFlight.acquire();
+                futures.add(executor.submit(() -> {
+                    try {
+                        warmUpPage(page);
+                    } finally {
+                        inFlight.release();
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            state = DONE;
+            log.info("商铺缓存预热完成，共{}个，耗时{}ms", warmed.get(), System.currentTimeMillis() - startTime);
+            return warmed.get();
+        } catch (Exception e) {
+            state = FAILED;
+            log.error("商铺缓存预热失败，已预热{}个", warmed.get(), e);
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            throw new RuntimeException(e);
+        } finally {
+            endTime = System.currentTimeMillis();
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * 在后台预热，已经在预热时返回false
+     */
+    public boolean warmUpAsync() {
+        if (RUNNING.equals(state)) {
+            return false;
+        }
+        Thread thread = new Thread(this::warmUp, "shop-cache-warm-up");
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    public Map<String, Object> getProgress() {
+        Map<String, Object> progress = new LinkedHashMap<>();
+        progress.put("state", state);
+        progress.put("warmed", warmed.get());
+        if (startTime > 0) {
+            long end = endTime > 0 ? endTime : System.currentTimeMillis();
+            progress.put("elapsedMillis", end - startTime);
+        }
+        return progress;
+    }
+
+    @Override
+    public Health health() {
+        Health.Builder builder = RUNNING.equals(state) ? Health.outOfService()
+                : FAILED.equals(state) ? Health.down() : Health.up();
+        return builder.withDetails(getProgress()).build();
+    }
+
+    private void warmUpPage(List<Long> ids) {
+        Map<Long, Shop> shops = shopService.listByIds(ids).stream()
+                .collect(Collectors.toMap(Shop::getId, Function.identity()));
+        cacheClient.setBatchWithLogicalExpire(CACHE_SHOP_KEY, shops, CACHE_SHOP_LOGICAL_TTL, TimeUnit.SECONDS);
+        long count = warmed.addAndGet(shops.size());
+        log.debug("商铺缓存预热中，已预热{}个", count);
+    }
+
+    /**
+     * 按页产出要预热的id，配置了热点id时只预热热点id
+     */
+    private Iterable<List<Long>> pages() {
+        int size = SystemConstants.DEFAULT_BATCH_SIZE;
+        if (StrUtil.isNotBlank(hotIds)) {
+            List<Long> ids = StrUtil.split(hotIds, ',', true, true).stream()
+                    .map(Long::valueOf)
+                    .collect(Collectors.toList());
+            List<List<Long>> pages = new ArrayList<>();
+            for (int i = 0; i < ids.size(); i += size) {
+                pages.add(ids.subList(i, Math.min(i + size, ids.size())));
+            }
+            return pages;
+        }
+        // 全表按id做游标分页，不用OFFSET
+        return () -> new Iterator<List<Long>>() {
+            private long lastId = 0L;
+            private List<Long> next;
+
+            @Override
+            public boolean hasNext() {
+                if (next == null) {
+                    next = shopService.query().select("id").gt("id", lastId).orderByAsc("id")
+                            .last("LIMIT " + size).list()
+                            .stream().map(Shop::getId).collect(Collectors.toList());
+                }
+                return !next.isEmpty();
+            }
+
+            @Override
+            public List<Long> next() {
+                List<Long> page = next;
+                lastId = page.get(page.size() - 1);
+                next = null;
+                return page;
+            }
+        };
+    }
+}
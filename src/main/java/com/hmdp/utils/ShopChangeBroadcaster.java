@@ -0,0 +1,71 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.IdUtil;
+import com.hmdp.entity.Shop;
+import com.hmdp.event.ShopChangedEvent;
+import com.hmdp.service.IShopService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+
+import static com.hmdp.utils.RedisConstants.SHOP_CHANGED_CHANNEL;
+
+/**
+ * 把本机的商铺变更广播给其他实例，其他实例收到后从数据库查询一次最新数据，
+ * 再发布remote的ShopChangedEvent，供进程内的索引更新
+ * 消息格式为 实例id|商铺id，忽略自己发出的消息
+ */
+@Slf4j
+@Component
+public class ShopChangeBroadcaster {
+    private final String instanceId = IdUtil.fastSimpleUUID();
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer listenerContainer;
+
+    @Resource
+    private IShopService shopService;
+
+    @Resource
+    private ApplicationEventPublisher eventPublisher;
+
+    @PostConstruct
+    private void init() {
+        listenerContainer.addMessageListener((message, pattern) ->
+                onMessage(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(SHOP_CHANGED_CHANNEL));
+    }
+
+    @TransactionalEventListener(fallbackExecution = true, condition = "!#event.remote")
+    public void onShopChanged(ShopChangedEvent event) {
+        Shop shop = event.getAfter() != null ? event.getAfter() : event.getBefore();
+        stringRedisTemplate.convertAndSend(SHOP_CHANGED_CHANNEL, instanceId + "|" + shop.getId());
+    }
+
+    private void onMessage(String message) {
+        int index = message.indexOf('|');
+        if (index < 0 || message.substring(0, index).equals(instanceId)) {
+            return;
+        }
+        Long id = Long.valueOf(message.substring(index + 1));
+        try {
+            Shop shop = shopService.getById(id);
+            if (shop != null) {
+                eventPublisher.publishEvent(new ShopChangedEvent(null, shop, true));
+            }
+        } catch (Exception e) {
+            log.error("处理商铺变更广播失败，shop={}", id, e);
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.ShopType;
+import com.hmdp.event.ShopChangedEvent;
+import com.hmdp.service.IShopService;
+import com.hmdp.service.IShopTypeService;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.data.geo.Circle;
+import org.springframework.data.geo.Distance;
+import org.springframework.data.geo.GeoResult;
+import org.springframework.data.geo.GeoResults;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.LOCK_SHOP_GEO_KEY;
+import static com.hmdp.utils.RedisConstants.SHOP_GEO_CHANGED_KEY;
+import static com.hmdp.utils.RedisConstants.SHOP_GEO_KEY;
+import static com.hmdp.utils.RedisConstants.SHOP_GEO_READY_KEY;
+import static com.hmdp.utils.RedisConstants.SHOP_INDEX_READY_CHECK_MILLIS;
+
+/**
+ * 附近商铺的GEO索引，每个类型一个key shop:geo:{typeId}，成员为商铺id
+ * 启动时从数据库批量加载，之后根据商铺变更事件增量维护
+ */
+@Slf4j
+@Component
+public class ShopGeoIndex {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private IShopService shopService;
+
+    @Resource
+    private IShopTypeService shopTypeService;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    private volatile boolean ready;
+    private volatile long readyCheckedAt;
+
+    /**
+     * 索引是否已经建好，每隔一段时间重新检查一次标记，Redis被清空后能退回到查询数据库
+     */
+    public boolean isReady() {
+        long now = System.currentTimeMillis();
+        if (now - readyCheckedAt >= SHOP_INDEX_READY_CHECK_MILLIS) {
+            ready = Boolean.TRUE.equals(stringRedisTemplate.hasKey(SHOP_GEO_READY_KEY));
+            readyCheckedAt = now;
+        }
+        return ready;
+    }
+
+    /**
+     * 查询一页附近的商铺
+     * @param from 起始下标，从0开始
+     * @param count 数量
+     * @param radiusMeters 搜索半径，单位米
+     * @return 商铺id -> 距离（米），按距离由近到远；这个类型的key不存在（被淘汰或者删除）时返回null
+     */
+    public Map<Long, Double> nearby(Long typeId, double x, double y, long from, long count, double radiusMeters) {
+        // GEORADIUS只能取前N个，取到这一页的末尾，再跳过前面的
+        long end = from + count;
+        GeoResults<RedisGeoCommands.GeoLocation<String>> results = stringRedisTemplate.opsForGeo().radius(
+                SHOP_GEO_KEY + typeId,
+                new Circle(new Point(x, y), new Distance(radiusMeters, RedisGeoCommands.DistanceUnit.METERS)),
+                RedisGeoCommands.GeoRadiusCommandArgs.newGeoRadiusArgs().includeDistance().sortAscending().limit(end));
+        if (results == null || results.getContent().isEmpty()) {
+            return Boolean.TRUE.equals(stringRedisTemplate.hasKey(SHOP_GEO_KEY + typeId)) ? Collections.emptyMap() : null;
+        }
+        if (results.getContent().size() <= from) {
+            return Collections.emptyMap();
+        }
+        List<GeoResult<RedisGeoCommands.GeoLocation<String>>> content = results.getContent();
+        Map<Long, Double> page = new LinkedHashMap<>();
+        for (int i = (int) from; i < content.size(); i++) {
+            GeoResult<RedisGeoCommands.GeoLocation<String>> result = content.get(i);
+            page.put(Long.valueOf(result.getContent().getName()), result.getDistance().getValue());
+        }
+        return page;
+    }
+
+    /**
+     * 全量重建：按id分批读取坐标，pipeline执行GEOADD写入临时key，全部写完后再RENAME替换
+     * 和商铺类型索引一样用分布式锁互斥，先清理临时key，RENAME之后重放重建期间的变更
+     * @return 已经有其他重建在进行时返回false
+     */
+    public boolean rebuild() {
+        RLock lock = redissonClient.getLock(LOCK_SHOP_GEO_KEY);
+        if (!lock.tryLock()) {
+            log.info("商铺GEO索引正在由其他线程或实例重建");
+            return false;
+        }
+        try {
+            long begin = System.currentTimeMillis();
+            // 1.清理上次留下的变更记录和临时key
+            Set<Long> allTypeIds = new HashSet<>();
+            for (ShopType shopType : shopTypeService.list()) {
+                allTypeIds.add(shopType.getId());
+            }
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                conn.del(SHOP_GEO_CHANGED_KEY);
+                for (Long typeId : allTypeIds) {
+                    conn.del(tmpKey(SHOP_GEO_KEY + typeId));
+                }
+                return null;
+            });
+            // 2.按id分批写入临时key
+            Set<Long> typeIds = new HashSet<>();
+            long lastId = 0L;
+            long count = 0;
+            while (true) {
+                List<Shop> shops = shopService.query().select("id", "type_id", "x", "y")
+                        .gt("id", lastId).orderByAsc("id")
+                        .last("LIMIT " + SystemConstants.DEFAULT_BATCH_SIZE).list();
+                if (shops.isEmpty()) {
+                    break;
+                }
+                stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    StringRedisConnection conn = (StringRedisConnection) connection;
+                    for (Shop shop : shops) {
+                        if (hasLocation(shop)) {
+                            typeIds.add(shop.getTypeId());
+                            if (allTypeIds.add(shop.getTypeId())) {
+                                conn.del(tmpKey(SHOP_GEO_KEY + shop.getTypeId()));
+                            }
+                            conn.geoAdd(tmpKey(SHOP_GEO_KEY + shop.getTypeId()), new Point(shop.getX(), shop.getY()), shop.getId().toString());
+                        }
+                    }
+                    return null;
+                });
+                count += shops.size();
+                lastId = shops.get(shops.size() - 1).getId();
+            }
+            // 3.替换正式的key
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (Long typeId : allTypeIds) {
+                    String key = SHOP_GEO_KEY + typeId;
+                    if (typeIds.contains(typeId)) {
+                        conn.rename(tmpKey(key), key);
+                    } else {
+                        conn.del(key);
+                    }
+                }
+                conn.set(SHOP_GEO_READY_KEY, String.valueOf(System.currentTimeMillis()));
+                return null;
+            });
+            // 4.重放重建期间变更过的商铺
+            long replayed = replayChanges(allTypeIds);
+            ready = true;
+            readyCheckedAt = System.currentTimeMillis();
+            log.info("商铺GEO索引重建完成，共{}个商铺，{}个类型，重放{}个变更，耗时{}ms",
+                    count, typeIds.size(), replayed, System.currentTimeMillis() - begin);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 重新读库写入重建期间变更过的商铺，先从所有类型的key里删除
+     * @return 重放的商铺数
+     */
+    private long replayChanges(Set<Long> typeIds) {
+        long replayed = 0;
+        while (true) {
+            List<String> ids = stringRedisTemplate.opsForSet().pop(SHOP_GEO_CHANGED_KEY, SystemConstants.DEFAULT_BATCH_SIZE);
+            if (ids == null || ids.isEmpty()) {
+                return replayed;
+            }
+            Map<Long, Shop> shops = shopService.query().select("id", "type_id", "x", "y")
+                    .in("id", ids).list().stream()
+                    .collect(Collectors.toMap(Shop::getId, Function.identity()));
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (String id : ids) {
+                    for (Long typeId : typeIds) {
+                        conn.zRem(SHOP_GEO_KEY + typeId, id);
+                    }
+                    Shop shop = shops.get(Long.valueOf(id));
+                    if (shop != null && hasLocation(shop)) {
+                        conn.geoAdd(SHOP_GEO_KEY + shop.getTypeId(), new Point(shop.getX(), shop.getY()), id);
+                    }
+                }
+                return null;
+            });
+            replayed += ids.size();
+        }
+    }
+
+    /**
+     * 商铺新增或修改后更新坐标，类型变了要先从旧类型的key里删除
+     * 正在重建时同时记下商铺id，RENAME之后重放
+     */
+    @TransactionalEventListener(fallbackExecution = true, condition = "!#event.remote")
+    public void onShopChanged(ShopChangedEvent event) {
+        Shop before = event.getBefore();
+        Shop after = event.getAfter();
+        try {
+            boolean rebuilding = redissonClient.getLock(LOCK_SHOP_GEO_KEY).isLocked();
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                if (before != null && (after == null || !hasLocation(after)
+                        || !Objects.equals(before.getTypeId(), after.getTypeId()))) {
+                    conn.zRem(SHOP_GEO_KEY + before.getTypeId(), before.getId().toString());
+                }
+                if (after != null && hasLocation(after)) {
+                    conn.geoAdd(SHOP_GEO_KEY + after.getTypeId(), new Point(after.getX(), after.getY()), after.getId().toString());
+                }
+                if (rebuilding) {
+                    conn.sAdd(SHOP_GEO_CHANGED_KEY, (after != null ? after : before).getId().toString());
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            log.error("更新商铺GEO索引失败，shop={}", after != null ? after.getId() : before.getId(), e);
+        }
+    }
+
+    private static boolean hasLocation(Shop shop) {
+        return shop.getX() != null && shop.getY() != null;
+    }
+
+    private static String tmpKey(String key) {
+        return key + ":tmp";
+    }
+}
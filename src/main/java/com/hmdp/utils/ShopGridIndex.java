@@ -0,0 +1,330 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.event.ShopChangedEvent;
+import com.hmdp.service.IShopService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import javax.annotation.Resource;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static com.hmdp.utils.RedisConstants.SHOP_NEARBY_MAX_RESULTS;
+
+/**
+ * 附近商铺的进程内网格索引，按类型分区
+ * 1. 经纬度按固定的格子大小划分成网格，每个格子用基本类型数组保存商铺id和坐标，查询时不产生装箱的Double
+ * 2. 查询时只遍历和搜索圆相交的格子，用球面距离过滤，再用定长的大顶堆取前k个
+ * 3. 距离计算和Redis GEO使用同样的地球半径，结果可以互相替代
+ * 启动时全量加载，之后根据商铺变更事件（包括其他实例广播过来的）增量更新
+ */
+@Slf4j
+@Component
+public class ShopGridIndex {
+    /**
+     * 格子边长，单位度，0.01度约为1.1公里
+     */
+    private static final double CELL_DEGREES = 0.01;
+    /**
+     * 和Redis GEO保持一致的地球半径，单位米
+     */
+    private static final double EARTH_RADIUS_METERS = 6372797.560856;
+    private static final double METERS_PER_DEGREE = Math.toRadians(1) * EARTH_RADIUS_METERS;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    /**
+     * 类型id -> (格子编号 -> 格子)
+     */
+    private final Map<Long, Map<Long, Cell>> grids = new HashMap<>();
+    /**
+     * 商铺id -> 所在的类型和格子，修改坐标时用来从旧格子里删除
+     */
+    private final Map<Long, long[]> locations = new HashMap<>();
+
+    private volatile boolean ready;
+
+    @Resource
+    private IShopService shopService;
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * 从数据库全量加载，按id分批只查询类型和坐标
+     */
+    public void load() {
+        long begin = System.currentTimeMillis();
+        long lastId = 0L;
+        while (true) {
+            List<Shop> shops = shopService.query().select("id", "type_id", "x", "y")
+                    .gt("id", lastId).orderByAsc("id")
+                    .last("LIMIT " + SystemConstants.DEFAULT_BATCH_SIZE).list();
+            if (shops.isEmpty()) {
+                break;
+            }
+            lock.writeLock().lock();
+            try {
+                for (Shop shop : shops) {
+                    put(shop);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+            lastId = shops.get(shops.size() - 1).getId();
+        }
+        ready = true;
+        log.info("商铺网格索引加载完成，共{}个商铺，耗时{}ms", locations.size(), System.currentTimeMillis() - begin);
+    }
+
+    /**
+     * 查询一页附近的商铺
+     * @param from 起始下标，从0开始，和count一起最多取到前 SHOP_NEARBY_MAX_RESULTS 个
+     * @param count 数量
+     * @param radiusMeters 搜索半径，单位米
+     * @return 商铺id -> 距离（米），按距离由近到远
+     */
+    public Map<Long, Double> nearby(Long typeId, double x, double y, int from, int count, double radiusMeters) {
+        if (from < 0 || count <= 0 || from >= SHOP_NEARBY_MAX_RESULTS) {
+            return Collections.emptyMap();
+        }
+        if (!Double.isFinite(x) || !Double.isFinite(y) || !(radiusMeters >= 0) || Math.abs(x) > 180 || Math.abs(y) > 90) {
+            return Collections.emptyMap();
+        }
+        int k = (int) Math.min((long) from + count, SHOP_NEARBY_MAX_RESULTS);
+        TopK topK = new TopK(k);
+        lock.readLock().lock();
+        try {
+            Map<Long, Cell> grid = grids.get(typeId);
+            if (grid == null) {
+                return Collections.emptyMap();
+            }
+            // 1.搜索圆的外接矩形覆盖的格子范围，经度方向的跨度随纬度变大，
+            // 限制在经纬度的合法范围内，靠近极点时不会扫描成千上万个格子，循环变量也不会溢出
+            double dLat = Math.min(radiusMeters / METERS_PER_DEGREE, 180);
+            double dLon = Math.min(dLat / Math.max(Math.cos(Math.toRadians(y)), 1e-6), 360);
+            long minX = cellOf(Math.max(x - dLon, -180)), maxX = cellOf(Math.min(x + dLon, 180));
+            long minY = cellOf(Math.max(y - dLat, -90)), maxY = cellOf(Math.min(y + dLat, 90));
+            // 2.逐个格子计算距离，半径内的放入堆
+            for (long cx = minX; cx <= maxX; cx++) {
+                for (long cy = minY; cy <= maxY; cy++) {
+                    Cell cell = grid.get(cellKey(cx, cy));
+                    if (cell == null) {
+                        continue;
+                    }
+                    for (int i = 0; i < cell.size; i++) {
+                        double distance = distance(x, y, cell.xs[i], cell.ys[i]);
+                        if (distance <= radiusMeters) {
+                            topK.offer(cell.ids[i], distance);
+                        }
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        // 3.取出排好序的前k个，跳过前面的页
+        return topK.page(from);
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onShopChanged(ShopChangedEvent event) {
+        Shop shop = event.getAfter();
+        if (shop == null) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            put(shop);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 写入或移动一个商铺，调用方持有写锁
+     */
+    private void put(Shop shop) {
+        long id = shop.getId();
+        long[] old = locations.remove(id);
+        if (old != null) {
+            Map<Long, Cell> grid = grids.get(old[0]);
+            Cell cell = grid == null ? null : grid.get(old[1]);
+            if (cell != null && cell.remove(id) && cell.size == 0) {
+                grid.remove(old[1]);
+            }
+        }
+        if (shop.getX() == null || shop.getY() == null || shop.getTypeId() == null) {
+            return;
+        }
+        double x = shop.getX();
+        double y = shop.getY();
+        long key = cellKey(cellOf(x), cellOf(y));
+        grids.computeIfAbsent(shop.getTypeId(), t -> new HashMap<>())
+                .computeIfAbsent(key, c -> new Cell())
+                .add(id, x, y);
+        locations.put(id, new long[]{shop.getTypeId(), key});
+    }
+
+    private static long cellOf(double degrees) {
+        return (long) Math.floor(degrees / CELL_DEGREES);
+    }
+
+    private static long cellKey(long cx, long cy) {
+        return (cx << 32) | (cy & 0xFFFFFFFFL);
+    }
+
+    /**
+     * 半正矢公式计算球面距离，单位米
+     */
+    static double distance(double x1, double y1, double x2, double y2) {
+        double lat1 = Math.toRadians(y1);
+        double lat2 = Math.toRadians(y2);
+        double u = Math.sin((lat2 - lat1) / 2);
+        double v = Math.sin(Math.toRadians(x2 - x1) / 2);
+        return 2 * EARTH_RADIUS_METERS * Math.asin(Math.sqrt(u * u + Math.cos(lat1) * Math.cos(lat2) * v * v));
+    }
+
+    /**
+     * 一个格子里的商铺，三个数组按下标对应
+     */
+    private static class Cell {
+        private long[] ids = new long[4];
+        private double[] xs = new double[4];
+        private double[] ys = new double[4];
+        private int size;
+
+        private void add(long id, double x, double y) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                xs = Arrays.copyOf(xs, size * 2);
+                ys = Arrays.copyOf(ys, size * 2);
+            }
+            ids[size] = id;
+            xs[size] = x;
+            ys[size] = y;
+            size++;
+        }
+
+        /**
+         * 用最后一个元素覆盖被删除的位置
+         */
+        private boolean remove(long id) {
+            for (int i = 0; i < size; i++) {
+                if (ids[i] == id) {
+                    size--;
+                    ids[i] = ids[size];
+                    xs[i] = xs[size];
+                    ys[i] = ys[size];
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * 大顶堆，保留距离最小的k个，数组随找到的商铺数增长，最多k个
+     */
+    private static class TopK {
+        private final int k;
+        private long[] ids;
+        private double[] distances;
+        private int size;
+
+        private TopK(int k) {
+            this.k = k;
+            int capacity = Math.min(k, 16);
+            ids = new long[capacity];
+            distances = new double[capacity];
+        }
+
+        private void offer(long id, double distance) {
+            if (k == 0) {
+                return;
+            }
+            if (size < k) {
+                if (size == ids.length) {
+                    int capacity = Math.min(k, size * 2);
+                    ids = Arrays.copyOf(ids, capacity);
+                    distances = Arrays.copyOf(distances, capacity);
+                }
+                ids[size] = id;
+                distances[size] = distance;
+                siftUp(size++);
+            } else if (distance < distances[0]) {
+                ids[0] = id;
+                distances[0] = distance;
+                siftDown(0);
+            }
+        }
+
+        /**
+         * 依次弹出堆顶得到从远到近的顺序，倒过来后跳过前from个
+         */
+        private Map<Long, Double> page(int from) {
+            int n = size;
+            long[] sortedIds = new long[n];
+            double[] sortedDistances = new double[n];
+            for (int i = n - 1; i >= 0; i--) {
+                sortedIds[i] = ids[0];
+                sortedDistances[i] = distances[0];
+                size--;
+                ids[0] = ids[size];
+                distances[0] = distances[size];
+                siftDown(0);
+            }
+            if (from >= n) {
+                return Collections.emptyMap();
+            }
+            Map<Long, Double> page = new LinkedHashMap<>();
+            for (int i = from; i < n; i++) {
+                page.put(sortedIds[i], sortedDistances[i]);
+            }
+            return page;
+        }
+
+        private void siftUp(int i) {
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (distances[parent] >= distances[i]) {
+                    break;
+                }
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        private void siftDown(int i) {
+            while (true) {
+                int left = 2 * i + 1;
+                if (left >= size) {
+                    break;
+                }
+                int largest = left + 1 < size && distances[left + 1] > distances[left] ? left + 1 : left;
+                if (distances[i] >= distances[largest]) {
+                    break;
+                }
+                swap(i, largest);
+                i = largest;
+            }
+        }
+
+        private void swap(int a, int b) {
+            long id = ids[a];
+            ids[a] = ids[b];
+            ids[b] = id;
+            double distance = distances[a];
+            distances[a] = distances[b];
+            distances[b] = distance;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.entity.Shop;
+import com.hmdp.event.ShopChangedEvent;
+import com.hmdp.service.IShopService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 商铺名称的进程内倒排索引，代替 LIKE '%name%' 的全表扫描
+ * 1. 名称去掉空白、转小写后切成单字和二元组（bigram），中文名称不需要分词
+ * 2. 查询词长度为1时查单字的倒排表，否则对查询词的所有二元组求交集，
+ *    再用子串匹配去掉误判，结果和LIKE完全一致
+ * 3. 排序：名称完全相等 > 前缀匹配 > 匹配位置靠前 > 名称短 > id小
+ * 启动时全量加载，之后根据商铺变更事件增量更新
+ */
+@Slf4j
+@Component
+public class ShopNameIndex {
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    /**
+     * 单字或二元组 -> 名称中包含它的商铺id
+     */
+    private final Map<String, Set<Long>> postings = new HashMap<>();
+    /**
+     * 商铺id -> 归一化后的名称
+     */
+    private final Map<Long, String> names = new HashMap<>();
+
+    private volatile boolean ready;
+
+    @Resource
+    private IShopService shopService;
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * 从数据库全量加载，按id分批只查询id和名称
+     */
+    public void load() {
+        long begin = System.currentTimeMillis();
+        long lastId = 0L;
+        while (true) {
+            List<Shop> shops = shopService.query().select("id", "name")
+                    .gt("id", lastId).orderByAsc("id")
+                    .last("LIMIT " + SystemConstants.DEFAULT_BATCH_SIZE).list();
+            if (shops.isEmpty()) {
+                break;
+            }
+            lock.writeLock().lock();
+            try {
+                for (Shop shop : shops) {
+                    put(shop.getId(), shop.getName());
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+            lastId = shops.get(shops.size() - 1).getId();
+        }
+        ready = true;
+        log.info("商铺名称索引加载完成，共{}个商铺，{}个词项，耗时{}ms",
+                names.size(), postings.size(), System.currentTimeMillis() - begin);
+    }
+
+    /**
+     * 分页搜索
+     * @param keyword 关键字
+     * @param from 起始下标，从0开始
+     * @param count 数量
+     * @return 排好序的一页商铺id
+     */
+    public List<Long> search(String keyword, int from, int count) {
+        String query = normalize(keyword);
+        if (query.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Long> matched = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            // 1.取出所有词项的倒排表，从最短的开始求交集
+            List<Set<Long>> lists = new ArrayList<>();
+            for (String gram : queryGrams(query)) {
+                Set<Long> ids = postings.get(gram);
+                if (ids == null) {
+                    return Collections.emptyList();
+                }
+                lists.add(ids);
+            }
+            lists.sort(Comparator.comparingInt(Set::size));
+            Set<Long> smallest = lists.get(0);
+            outer:
+            for (Long id : smallest) {
+                for (int i = 1; i < lists.size(); i++) {
+                    if (!lists.get(i).contains(id)) {
+                        continue outer;
+                    }
+                }
+                // 2.二元组都包含不代表是子串，再确认一次
+                if (names.get(id).contains(query)) {
+                    matched.add(id);
+                }
+            }
+            // 3.排序
+            matched.sort(Comparator.<Long>comparingInt(id -> names.get(id).equals(query) ? 0 : 1)
+                    .thenComparingInt(id -> names.get(id).indexOf(query))
+                    .thenComparingInt(id -> names.get(id).length())
+                    .thenComparing(Comparator.naturalOrder()));
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (from < 0 || count <= 0 || from >= matched.size()) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<>(matched.subList(from, Math.min(from + count, matched.size())));
+    }
+
+    /**
+     * 商铺新增或修改后更新索引，其他实例的修改通过广播过来
+     */
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onShopChanged(ShopChangedEvent event) {
+        Shop shop = event.getAfter();
+        if (shop == null) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            put(shop.getId(), shop.getName());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 写入一个商铺，名称变了要先删掉旧名称的词项，调用方持有写锁
+     */
+    private void put(Long id, String name) {
+        String normalized = normalize(name);
+        String old = names.put(id, normalized);
+        if (normalized.equals(old)) {
+            return;
+        }
+        if (old != null) {
+            for (String gram : grams(old)) {
+                Set<Long> ids = postings.get(gram);
+                if (ids != null && ids.remove(id) && ids.isEmpty()) {
+                    postings.remove(gram);
+                }
+            }
+        }
+        for (String gram : grams(normalized)) {
+            postings.computeIfAbsent(gram, k -> new HashSet<>()).add(id);
+        }
+    }
+
+    private static String normalize(String s) {
+        return s == null ? "" : StrUtil.cleanBlank(s).toLowerCase();
+    }
+
+    /**
+     * 名称的全部单字和二元组
+     */
+    private static Set<String> grams(String name) {
+        Set<String> grams = new LinkedHashSet<>();
+        for (int i = 0; i < name.length(); i++) {
+            grams.add(name.substring(i, i + 1));
+            if (i + 1 < name.length()) {
+                grams.add(name.substring(i, i + 2));
+            }
+        }
+        return grams;
+    }
+
+    /**
+     * 查询词只用单字（长度为1时）或者全部二元组
+     */
+    private static Set<String> queryGrams(String query) {
+        if (query.length() == 1) {
+            return Collections.singleton(query);
+        }
+        Set<String> grams = new LinkedHashSet<>();
+        for (int i = 0; i + 1 < query.length(); i++) {
+            grams.add(query.substring(i, i + 2));
+        }
+        return grams;
+    }
+}
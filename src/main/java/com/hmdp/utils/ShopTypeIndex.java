@@ -0,0 +1,272 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.ShopType;
+import com.hmdp.event.ShopChangedEvent;
+import com.hmdp.service.IShopService;
+import com.hmdp.service.IShopTypeService;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.LOCK_SHOP_TYPE_INDEX_KEY;
+import static com.hmdp.utils.RedisConstants.SHOP_INDEX_READY_CHECK_MILLIS;
+import static com.hmdp.utils.RedisConstants.SHOP_TYPE_INDEX_CHANGED_KEY;
+import static com.hmdp.utils.RedisConstants.SHOP_TYPE_INDEX_KEY;
+import static com.hmdp.utils.RedisConstants.SHOP_TYPE_INDEX_READY_KEY;
+
+/**
+ * 按类型分页查询商铺的排序索引
+ * 每个类型、每种排序方式一个有序集合 shop:type:{排序方式}:{typeId}，成员为商铺id，
+ * 分页时用ZRANGE取出一页id，再通过CacheClient批量加载商铺详情，翻到多深的页都不查数据库
+ */
+@Slf4j
+@Component
+public class ShopTypeIndex {
+    public static final String SORT_ID = "id";
+    public static final String SORT_SCORE = "score";
+    public static final String SORT_SOLD = "sold";
+
+    /**
+     * 排序方式 -> 有序集合的分数，id升序，评分和销量降序
+     */
+    private static final Map<String, Function<Shop, Number>> SORTS = new LinkedHashMap<>();
+
+    static {
+        SORTS.put(SORT_ID, Shop::getId);
+        SORTS.put(SORT_SCORE, Shop::getScore);
+        SORTS.put(SORT_SOLD, Shop::getSold);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private IShopService shopService;
+
+    @Resource
+    private IShopTypeService shopTypeService;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    private volatile boolean ready;
+    private volatile long readyCheckedAt;
+
+    public static boolean isValidSort(String sortBy) {
+        return SORTS.containsKey(sortBy);
+    }
+
+    /**
+     * 索引是否已经建好，每隔一段时间重新检查一次标记，Redis被清空后能退回到查询数据库
+     */
+    public boolean isReady() {
+        long now = System.currentTimeMillis();
+        if (now - readyCheckedAt >= SHOP_INDEX_READY_CHECK_MILLIS) {
+            ready = Boolean.TRUE.equals(stringRedisTemplate.hasKey(SHOP_TYPE_INDEX_READY_KEY));
+            readyCheckedAt = now;
+        }
+        return ready;
+    }
+
+    /**
+     * 查询一页商铺id
+     * @param from 起始下标，从0开始
+     * @param count 数量
+     * @return 商铺id，这个类型的索引key不存在（被淘汰或者删除）时返回null，由调用方查询数据库
+     */
+    public List<Long> range(Long typeId, String sortBy, long from, long count) {
+        // ZRANGE的负数下标从末尾算起，不能直接传下去
+        if (from < 0 || count <= 0) {
+            return Collections.emptyList();
+        }
+        String key = indexKey(sortBy, typeId);
+        long to = from + count - 1;
+        Set<String> members = SORT_ID.equals(sortBy)
+                ? stringRedisTemplate.opsForZSet().range(key, from, to)
+                : stringRedisTemplate.opsForZSet().reverseRange(key, from, to);
+        if (members == null || members.isEmpty()) {
+            return Boolean.TRUE.equals(stringRedisTemplate.hasKey(key)) ? Collections.emptyList() : null;
+        }
+        return members.stream().map(Long::valueOf).collect(Collectors.toList());
+    }
+
+    /**
+     * 全量重建：按id分批读取商铺写入临时key，全部写完后再RENAME替换，重建期间查询不受影响
+     * 1. 用分布式锁保证同一时间只有一个重建，先删掉上次中断留下的临时key
+     * 2. 重建期间变更的商铺id记录在 shop:type:changed 里，RENAME之后重新读库写一遍，不会被旧数据覆盖
+     * @return 已经有其他重建在进行时返回false
+     */
+    public boolean rebuild() {
+        RLock lock = redissonClient.getLock(LOCK_SHOP_TYPE_INDEX_KEY);
+        if (!lock.tryLock()) {
+            log.info("商铺类型索引正在由其他线程或实例重建");
+            return false;
+        }
+        try {
+            long begin = System.currentTimeMillis();
+            // 1.清理上次留下的变更记录和临时key，没有商铺的类型重建后也要清掉旧索引
+            Set<Long> allTypeIds = new HashSet<>();
+            for (ShopType shopType : shopTypeService.list()) {
+                allTypeIds.add(shopType.getId());
+            }
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                conn.del(SHOP_TYPE_INDEX_CHANGED_KEY);
+                for (Long typeId : allTypeIds) {
+                    for (String sortBy : SORTS.keySet()) {
+                        conn.del(tmpKey(indexKey(sortBy, typeId)));
+                    }
+                }
+                return null;
+            });
+            // 2.按id分批写入临时key，类型表里没有的类型第一次出现时也先删掉临时key
+            Set<Long> typeIds = new HashSet<>();
+            long lastId = 0L;
+            long count = 0;
+            while (true) {
+                List<Shop> shops = shopService.query().select("id", "type_id", "score", "sold")
+                        .gt("id", lastId).orderByAsc("id")
+                        .last("LIMIT " + SystemConstants.DEFAULT_BATCH_SIZE).list();
+                if (shops.isEmpty()) {
+                    break;
+                }
+                stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    StringRedisConnection conn = (StringRedisConnection) connection;
+                    for (Shop shop : shops) {
+                        typeIds.add(shop.getTypeId());
+                        if (allTypeIds.add(shop.getTypeId())) {
+                            for (String sortBy : SORTS.keySet()) {
+                                conn.del(tmpKey(indexKey(sortBy, shop.getTypeId())));
+                            }
+                        }
+                        SORTS.forEach((sortBy, score) ->
+                                conn.zAdd(tmpKey(indexKey(sortBy, shop.getTypeId())), toScore(score.apply(shop)), shop.getId().toString()));
+                    }
+                    return null;
+                });
+                count += shops.size();
+                lastId = shops.get(shops.size() - 1).getId();
+            }
+            // 3.替换正式的key
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (Long typeId : allTypeIds) {
+                    for (String sortBy : SORTS.keySet()) {
+                        String key = indexKey(sortBy, typeId);
+                        if (typeIds.contains(typeId)) {
+                            conn.rename(tmpKey(key), key);
+                        } else {
+                            conn.del(key);
+                        }
+                    }
+                }
+                conn.set(SHOP_TYPE_INDEX_READY_KEY, String.valueOf(System.currentTimeMillis()));
+                return null;
+            });
+            // 4.重放重建期间变更过的商铺
+            long replayed = replayChanges(allTypeIds);
+            ready = true;
+            readyCheckedAt = System.currentTimeMillis();
+            log.info("商铺类型索引重建完成，共{}个商铺，{}个类型，重放{}个变更，耗时{}ms",
+                    count, typeIds.size(), replayed, System.currentTimeMillis() - begin);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 重新读库写入重建期间变更过的商铺，先从所有类型的索引里删除，类型变过的商铺不会残留在旧类型里
+     * @return 重放的商铺数
+     */
+    private long replayChanges(Set<Long> typeIds) {
+        long replayed = 0;
+        while (true) {
+            List<String> ids = stringRedisTemplate.opsForSet().pop(SHOP_TYPE_INDEX_CHANGED_KEY, SystemConstants.DEFAULT_BATCH_SIZE);
+            if (ids == null || ids.isEmpty()) {
+                return replayed;
+            }
+            Map<Long, Shop> shops = shopService.query().select("id", "type_id", "score", "sold")
+                    .in("id", ids).list().stream()
+                    .collect(Collectors.toMap(Shop::getId, Function.identity()));
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (String id : ids) {
+                    for (Long typeId : typeIds) {
+                        for (String sortBy : SORTS.keySet()) {
+                            conn.zRem(indexKey(sortBy, typeId), id);
+                        }
+                    }
+                    Shop shop = shops.get(Long.valueOf(id));
+                    if (shop != null) {
+                        SORTS.forEach((sortBy, score) ->
+                                conn.zAdd(indexKey(sortBy, shop.getTypeId()), toScore(score.apply(shop)), id));
+                    }
+                }
+                return null;
+            });
+            replayed += ids.size();
+        }
+    }
+
+    /**
+     * 商铺新增或修改后更新索引，类型变了要先从旧类型的索引里删除
+     * 正在重建时同时记下商铺id，RENAME之后重放，避免这次变更被临时key里的旧数据覆盖
+     */
+    @TransactionalEventListener(fallbackExecution = true, condition = "!#event.remote")
+    public void onShopChanged(ShopChangedEvent event) {
+        Shop before = event.getBefore();
+        Shop after = event.getAfter();
+        try {
+            boolean rebuilding = redissonClient.getLock(LOCK_SHOP_TYPE_INDEX_KEY).isLocked();
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                if (before != null && (after == null || !Objects.equals(before.getTypeId(), after.getTypeId()))) {
+                    for (String sortBy : SORTS.keySet()) {
+                        conn.zRem(indexKey(sortBy, before.getTypeId()), before.getId().toString());
+                    }
+                }
+                if (after != null) {
+                    SORTS.forEach((sortBy, score) ->
+                            conn.zAdd(indexKey(sortBy, after.getTypeId()), toScore(score.apply(after)), after.getId().toString()));
+                }
+                if (rebuilding) {
+                    conn.sAdd(SHOP_TYPE_INDEX_CHANGED_KEY, (after != null ? after : before).getId().toString());
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            // 索引和数据库不一致时可以通过 /cache/shop-type-index/rebuild 修复
+            log.error("更新商铺类型索引失败，shop={}", after != null ? after.getId() : before.getId(), e);
+        }
+    }
+
+    private static double toScore(Number value) {
+        return value == null ? 0 : value.doubleValue();
+    }
+
+    private static String indexKey(String sortBy, Long typeId) {
+        return SHOP_TYPE_INDEX_KEY + sortBy + ":" + typeId;
+    }
+
+    private static String tmpKey(String key) {
+        return key + ":tmp";
+    }
+}
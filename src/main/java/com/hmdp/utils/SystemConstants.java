@@ -5,4 +5,6 @@ public class SystemConstants {
     public static final String USER_NICK_NAME_PREFIX = "user_";
     public static final int DEFAULT_PAGE_SIZE = 5;
     public static final int MAX_PAGE_SIZE = 10;
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+    public static final int MAX_MEMORY_REPORT_SAMPLES = 10000;
 }
@@ -0,0 +1,13 @@
+-- 订单消息转入死信队列，ACK和写入死信队列在一个脚本里，不会只做了一半
+-- 订单消息队列和死信队列，两个key带相同的hash tag
+local streamKey = KEYS[1]
+local deadLetterKey = KEYS[2]
+-- 消费者组和消息id，后面是写入死信队列的字段和值
+local group = ARGV[1]
+local recordId = ARGV[2]
+-- 已经不在pending-list里，说明别的实例处理过了，不重复写入
+if (redis.call('xack', streamKey, group, recordId) == 0) then
+    return 0
+end
+redis.call('xadd', deadLetterKey, '*', unpack(ARGV, 3))
+return 1
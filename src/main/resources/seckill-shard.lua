@@ -0,0 +1,10 @@
+-- 从其他库存分片借一件库存，借到后再由用户所属分片的seckill.lua校验限购、创建订单
+-- 库存key
+local stockKey = KEYS[1]
+-- 判断库存是否充足
+if ((tonumber(redis.call('get', stockKey)) or 0) <= 0) then
+    return 1
+end
+-- 扣减库存
+redis.call('incrby', stockKey, -1)
+return 0
@@ -1,25 +1,57 @@
--- 订单id
+-- 返回 {结果, 用户已购买数量}
+-- 结果：0成功，1库存不足，2超过限购数量，3本分片库存不足、需要从其他分片借库存，4秒杀未开始，5秒杀已结束，6优惠券不存在
+-- 所有key都属于用户所属的同一个分片，带相同的hash tag
+redis.replicate_commands()
+-- 库存key
+local stockKey = KEYS[1]
+-- 下单用户key，字段为用户id，值为已购买数量
+local orderKey = KEYS[2]
+-- 秒杀时间和限购数量key
+local metaKey = KEYS[3]
+-- 订单消息队列
+local streamKey = KEYS[4]
+-- 优惠券id
 local voucherId = ARGV[1]
 -- 用户id
 local userId = ARGV[2]
 -- 订单id
 local orderId = ARGV[3]
--- 优惠券key
-local stockKey = 'seckill:stock:' .. voucherId
--- 订单key
-local orderKey = 'seckill:order:' .. voucherId
--- 判断库存是否充足
-if (tonumber(redis.call('get', stockKey)) <= 0) then
-    return 1
+-- 库存是否已经从其他分片借到，借到了就不再扣减本分片的库存
+local borrowed = ARGV[4] == '1'
+-- 本分片库存不足时是否可以去其他分片借
+local canBorrow = ARGV[5] == '1'
+-- 判断秒杀时间，使用Redis的时间，各个实例的时钟不一致也不影响
+local meta = redis.call('hmget', metaKey, 'begin', 'end', 'limit')
+if (not meta[1]) then
+    return {6, 0}
+end
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+if (now < tonumber(meta[1])) then
+    return {4, 0}
+end
+if (now > tonumber(meta[2])) then
+    return {5, 0}
+end
+-- 判断用户是否超过限购数量，限购只在用户所属的分片里记录
+local limit = tonumber(meta[3]) or 1
+local bought = tonumber(redis.call('hget', orderKey, userId)) or 0
+if (bought >= limit) then
+    return {2, bought}
 end
--- 判断用户是否下单
-if (redis.call('sismember', orderKey, userId) == 1) then
-    return 2
+if (not borrowed) then
+    -- 判断库存是否充足
+    if ((tonumber(redis.call('get', stockKey)) or 0) <= 0) then
+        if (canBorrow) then
+            return {3, bought}
+        end
+        return {1, 0}
+    end
+    -- 扣减库存
+    redis.call('incrby', stockKey, -1)
 end
--- 扣减库存
-redis.call('incrby', stockKey, -1)
--- 将userId存入当前优惠券的set集合
-redis.call('sadd', orderKey, userId)
+-- 用户已购买数量加一，作为这笔订单的序号
+local seq = redis.call('hincrby', orderKey, userId, 1)
 -- 发送消息到消息队列
-redis.call('xadd', 'stream.orders', '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
-return 0
\ No newline at end of file
+redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId, 'seq', seq)
+return {0, seq}
@@ -0,0 +1,83 @@
+package com.hmdp;
+
+import com.hmdp.utils.ShopGeoIndex;
+import com.hmdp.utils.ShopGridIndex;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import javax.annotation.Resource;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * 附近商铺查询的基准测试：进程内网格索引 vs Redis GEORADIUS
+ * 需要数据库和Redis，默认不执行，按需运行：
+ * mvn test -Dtest=ShopNearbyBenchmark -Dbenchmark=true
+ */
+@SpringBootTest
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+class ShopNearbyBenchmark {
+    private static final int WARM_UP_ROUNDS = 1000;
+    private static final int ROUNDS = 10000;
+
+    @Resource
+    private ShopGeoIndex shopGeoIndex;
+    @Resource
+    private ShopGridIndex shopGridIndex;
+
+    @Test
+    void gridVsGeoRadius() {
+        if (!shopGeoIndex.isReady()) {
+            shopGeoIndex.rebuild();
+        }
+        if (!shopGridIndex.isReady()) {
+            shopGridIndex.load();
+        }
+        // 在杭州市区内随机取点，两种索引查询同样的点
+        Random random = new Random(1);
+        double[] xs = new double[ROUNDS];
+        double[] ys = new double[ROUNDS];
+        for (int i = 0; i < ROUNDS; i++) {
+            xs[i] = 120.10 + random.nextDouble() * 0.1;
+            ys[i] = 30.25 + random.nextDouble() * 0.1;
+        }
+        // 预热
+        for (int i = 0; i < WARM_UP_ROUNDS; i++) {
+            shopGridIndex.nearby(1L, xs[i], ys[i], 0, 10, 5000);
+            shopGeoIndex.nearby(1L, xs[i], ys[i], 0, 10, 5000);
+        }
+        long[] gridNanos = new long[ROUNDS];
+        long[] redisNanos = new long[ROUNDS];
+        int mismatch = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            long begin = System.nanoTime();
+            Map<Long, Double> local = shopGridIndex.nearby(1L, xs[i], ys[i], 0, 10, 5000);
+            gridNanos[i] = System.nanoTime() - begin;
+            begin = System.nanoTime();
+            Map<Long, Double> remote = shopGeoIndex.nearby(1L, xs[i], ys[i], 0, 10, 5000);
+            redisNanos[i] = System.nanoTime() - begin;
+            if (remote == null || !local.keySet().equals(remote.keySet())) {
+                mismatch++;
+            }
+        }
+        report("grid ", gridNanos);
+        report("redis", redisNanos);
+        // GEO用52位geohash存坐标，距离几乎相等的商铺可能排序不同
+        System.out.println("mismatch = " + mismatch + " / " + ROUNDS);
+    }
+
+    private static void report(String name, long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        long total = 0;
+        for (long n : sorted) {
+            total += n;
+        }
+        System.out.printf("%s avg = %.1f us, p50 = %.1f us, p99 = %.1f us%n", name,
+                total / (double) sorted.length / 1000,
+                sorted[sorted.length / 2] / 1000.0,
+                sorted[(int) (sorted.length * 0.99)] / 1000.0);
+    }
+}
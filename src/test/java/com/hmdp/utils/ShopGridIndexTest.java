@@ -0,0 +1,154 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.event.ShopChangedEvent;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static com.hmdp.utils.RedisConstants.SHOP_NEARBY_MAX_RESULTS;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 网格索引和暴力计算的结果对比，不依赖Spring容器、数据库和Redis
+ */
+class ShopGridIndexTest {
+    private static final double EARTH_RADIUS_METERS = 6372797.560856;
+    private static final int PAGE_SIZE = 5;
+
+    private final Random random = new Random(1);
+    private final Map<Long, Shop> shops = new HashMap<>();
+    private ShopGridIndex index;
+
+    @BeforeEach
+    void setUp() {
+        index = new ShopGridIndex();
+        // 在杭州市区内随机生成商铺，分三个类型
+        for (long id = 1; id <= 2000; id++) {
+            save(shop(id, 1 + id % 3, randomX(), randomY()));
+        }
+    }
+
+    @Test
+    void nearbyMatchesBruteForce() {
+        for (int i = 0; i < 200; i++) {
+            assertSameAsBruteForce(1 + i % 3, randomX(), randomY(), 0, 10, 1000 + random.nextInt(4000));
+        }
+    }
+
+    @Test
+    void pagesAreConsecutive() {
+        double x = randomX(), y = randomY();
+        List<Long> expected = new ArrayList<>(bruteForce(1L, x, y, 0, 50, 5000).keySet());
+        List<Long> paged = new ArrayList<>();
+        for (int from = 0; from < 50; from += PAGE_SIZE) {
+            paged.addAll(assertSameAsBruteForce(1L, x, y, from, PAGE_SIZE, 5000).keySet());
+        }
+        assertEquals(expected, paged);
+    }
+
+    @Test
+    void movedAndRemovedShopsAreReindexed() {
+        for (long id = 1; id <= 500; id++) {
+            if (id % 5 == 0) {
+                // 没有坐标的商铺从索引中删除
+                save(shop(id, shops.get(id).getTypeId(), null, null));
+            } else if (id % 2 == 0) {
+                // 换到别的类型和位置
+                save(shop(id, 1 + (id + 1) % 3, randomX(), randomY()));
+            } else {
+                // 同一个格子内或跨格子的小幅移动
+                Shop old = shops.get(id);
+                save(shop(id, old.getTypeId(), old.getX() + 0.01 * random.nextGaussian(), old.getY() + 0.01 * random.nextGaussian()));
+            }
+        }
+        for (int i = 0; i < 200; i++) {
+            assertSameAsBruteForce(1 + i % 3, randomX(), randomY(), i % 4 * PAGE_SIZE, PAGE_SIZE, 3000);
+        }
+    }
+
+    @Test
+    void invalidPagesReturnEmpty() {
+        double x = randomX(), y = randomY();
+        assertTrue(index.nearby(1L, x, y, -PAGE_SIZE, PAGE_SIZE, 5000).isEmpty());
+        assertTrue(index.nearby(1L, x, y, 0, 0, 5000).isEmpty());
+        assertTrue(index.nearby(1L, x, y, SHOP_NEARBY_MAX_RESULTS, PAGE_SIZE, 5000).isEmpty());
+        assertTrue(index.nearby(1L, x, y, Integer.MAX_VALUE - 1, PAGE_SIZE, 5000).isEmpty());
+        assertTrue(index.nearby(99L, x, y, 0, PAGE_SIZE, 5000).isEmpty());
+        // 商铺数超过上限时，跨过上限的一页只返回上限以内的部分
+        for (long id = 10001; id <= 10000 + SHOP_NEARBY_MAX_RESULTS + 10; id++) {
+            save(shop(id, 4L, randomX(), randomY()));
+        }
+        Map<Long, Double> last = index.nearby(4L, x, y, SHOP_NEARBY_MAX_RESULTS - 2, Integer.MAX_VALUE, 1_000_000);
+        assertEquals(new ArrayList<>(bruteForce(4L, x, y, SHOP_NEARBY_MAX_RESULTS - 2, 2, 1_000_000).keySet()),
+                new ArrayList<>(last.keySet()));
+    }
+
+    @Test
+    void invalidCoordinatesReturnQuickly() {
+        assertTimeoutPreemptively(Duration.ofSeconds(1), () -> {
+            assertTrue(index.nearby(1L, 120.1, 1e300, 0, PAGE_SIZE, 5000).isEmpty());
+            assertTrue(index.nearby(1L, Double.NaN, 30.3, 0, PAGE_SIZE, 5000).isEmpty());
+            assertTrue(index.nearby(1L, 120.1, Double.POSITIVE_INFINITY, 0, PAGE_SIZE, 5000).isEmpty());
+            // 极点附近经度方向的跨度被限制在一圈以内
+            index.nearby(1L, 120.1, 90, 0, PAGE_SIZE, 5000);
+            index.nearby(1L, 179.99, -89.99, 0, PAGE_SIZE, 1_000_000);
+        });
+    }
+
+    private Map<Long, Double> assertSameAsBruteForce(long typeId, double x, double y, int from, int count, double radius) {
+        Map<Long, Double> expected = bruteForce(typeId, x, y, from, count, radius);
+        Map<Long, Double> actual = index.nearby(typeId, x, y, from, count, radius);
+        assertEquals(new ArrayList<>(expected.keySet()), new ArrayList<>(actual.keySet()));
+        expected.forEach((id, distance) -> assertEquals(distance, actual.get(id), 1e-6));
+        return actual;
+    }
+
+    private Map<Long, Double> bruteForce(long typeId, double x, double y, int from, int count, double radius) {
+        Map<Long, Double> result = new LinkedHashMap<>();
+        shops.values().stream()
+                .filter(s -> s.getTypeId() == typeId && s.getX() != null)
+                .map(s -> new Object[]{s.getId(), haversine(x, y, s.getX(), s.getY())})
+                .filter(e -> (double) e[1] <= radius)
+                .sorted(Comparator.comparingDouble(e -> (double) e[1]))
+                .skip(from)
+                .limit(count)
+                .forEach(e -> result.put((Long) e[0], (Double) e[1]));
+        return result;
+    }
+
+    private static double haversine(double x1, double y1, double x2, double y2) {
+        double dLat = Math.toRadians(y2 - y1);
+        double dLon = Math.toRadians(x2 - x1);
+        double a = Math.pow(Math.sin(dLat / 2), 2)
+                + Math.cos(Math.toRadians(y1)) * Math.cos(Math.toRadians(y2)) * Math.pow(Math.sin(dLon / 2), 2);
+        return 2 * EARTH_RADIUS_METERS * Math.asin(Math.sqrt(a));
+    }
+
+    private void save(Shop shop) {
+        Shop before = shops.put(shop.getId(), shop);
+        index.onShopChanged(new ShopChangedEvent(before, shop));
+    }
+
+    private static Shop shop(long id, long typeId, Double x, Double y) {
+        return new Shop().setId(id).setTypeId(typeId).setX(x).setY(y);
+    }
+
+    private double randomX() {
+        return 120.10 + random.nextDouble() * 0.1;
+    }
+
+    private double randomY() {
+        return 30.25 + random.nextDouble() * 0.1;
+    }
+}